@@ -0,0 +1,76 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.VaccineInventory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// A throwaway database with every migration applied for the benchmark and load tools.
+// DBPath is set to it, so create it before anything touches the connection pool; one per JVM.
+final class BenchDatabase {
+
+    private final Path path;
+
+    private BenchDatabase(Path path) {
+        this.path = path;
+    }
+
+    static BenchDatabase create(String prefix, Path schema) throws IOException, SQLException {
+        Path path = Files.createTempFile(prefix, ".db");
+        System.setProperty("DBPath", path.toString());
+        BenchDatabase db = new BenchDatabase(path);
+        try {
+            db.createSchema(schema);
+            SchemaMigrator.migrate();
+        } catch (IOException | SQLException | RuntimeException e) {
+            db.delete();
+            throw e;
+        }
+        return db;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    private void createSchema(Path schema) throws IOException, SQLException {
+        StringBuilder sql = new StringBuilder();
+        for (String line : Files.readAllLines(schema, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("--");
+            sql.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+        }
+        ConnectionManager.inTransaction(cm -> {
+            try (Statement statement = cm.createConnection().createStatement()) {
+                for (String ddl : sql.toString().split(";")) {
+                    if (!ddl.trim().isEmpty()) {
+                        statement.executeUpdate(ddl);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    // Drop the caches and connections bound to the database, then delete it with its journals
+    void delete() {
+        AvailabilityIndex.invalidate();
+        VaccineInventory.invalidate();
+        ConnectionManager.shutdown();
+        File directory = path.toAbsolutePath().getParent().toFile();
+        String prefix = path.getFileName().toString();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.Caregiver;
+import scheduler.model.Reservation;
+import scheduler.model.VaccineInventory;
+import scheduler.util.EpochDay;
+import scheduler.util.PasswordHasher;
+
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Concurrent load test for the booking path, followed by a consistency check of the database:
+//   java -cp <classes>:<sqlite-jdbc> scheduler.LoadGenerator [options]
+//     --threads 32 --seconds 20       worker threads and how long they run
+//     --patients 5000 --caregivers 500 --days 30 --vaccines 3 --initial-doses 200
+//     --mix upload=30,reserve=40,cancel=15,add=15
+//     --schema <path>                 base schema, defaults to src/main/resources/sqlite/create.sql
+// Afterwards it checks the invariants in check() and exits with 1 if any of them fails.
+public class LoadGenerator {
+
+    private static final String PASSWORD = "Load#Passw0rd";
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+
+    private static final int UPLOAD = 0;
+    private static final int RESERVE = 1;
+    private static final int CANCEL = 2;
+    private static final int ADD_DOSES = 3;
+    private static final String[] OPERATIONS = {"upload", "reserve", "cancel", "add"};
+
+    private int threads = 32;
+    private int seconds = 20;
+    private int patients = 5000;
+    private int caregivers = 500;
+    private int days = 30;
+    private int vaccines = 3;
+    private int initialDoses = 200;
+    private final int[] mix = {30, 40, 15, 15};
+
+    private Caregiver[] caregiverAccounts;
+    private String[] vaccineNames;
+
+    // What the workers did, per vaccine where it matters for the dose check
+    private LongAdder[] added;
+    private LongAdder[] reserved;
+    private LongAdder[] canceled;
+    private final Set<Integer> appointmentIds = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Reservation> booked = new ConcurrentLinkedQueue<>();
+    private final AtomicLong duplicateIds = new AtomicLong();
+    private final AtomicLong lostCancels = new AtomicLong();
+
+    // Outcome counts per operation: succeeded, rejected (no caregiver, no doses, already uploaded, ...), failed
+    private final LongAdder[][] outcomes = new LongAdder[OPERATIONS.length][3];
+
+    // Latency samples in nanoseconds, one growable array per operation and thread
+    private static final class Samples {
+        long[] values = new long[1024];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String schema = "src/main/resources/sqlite/create.sql";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads":
+                    generator.threads = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    generator.seconds = Integer.parseInt(value);
+                    break;
+                case "--patients":
+                    generator.patients = Integer.parseInt(value);
+                    break;
+                case "--caregivers":
+                    generator.caregivers = Integer.parseInt(value);
+                    break;
+                case "--days":
+                    generator.days = Integer.parseInt(value);
+                    break;
+                case "--vaccines":
+                    generator.vaccines = Integer.parseInt(value);
+                    break;
+                case "--initial-doses":
+                    generator.initialDoses = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    generator.parseMix(value);
+                    break;
+                case "--schema":
+                    schema = value;
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        BenchDatabase db = BenchDatabase.create("scheduler-load-", Paths.get(schema));
+        List<String> violations;
+        try {
+            generator.seed();
+            generator.run();
+            violations = generator.check();
+        } finally {
+            db.delete();
+        }
+        if (violations.isEmpty()) {
+            System.out.println("All invariants hold");
+        } else {
+            for (String violation : violations) {
+                System.out.println("VIOLATION: " + violation);
+            }
+            System.exit(1);
+        }
+    }
+
+    private void parseMix(String value) {
+        Arrays.fill(mix, 0);
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=");
+            int operation = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+            if (pair.length != 2 || operation < 0) {
+                throw new IllegalArgumentException("Bad mix entry " + part);
+            }
+            mix[operation] = Integer.parseInt(pair[1].trim());
+        }
+    }
+
+    // Accounts share one password hash; the workers never log in, they act as the account directly
+    private void seed() throws SQLException {
+        PasswordHasher.Params params = PasswordHasher.current();
+        byte[] salt = PasswordHasher.generateSalt();
+        byte[] hash = PasswordHasher.hash(PASSWORD, salt, params);
+        caregiverAccounts = new Caregiver[caregivers];
+        vaccineNames = new String[vaccines];
+        added = new LongAdder[vaccines];
+        reserved = new LongAdder[vaccines];
+        canceled = new LongAdder[vaccines];
+        for (int v = 0; v < vaccines; v++) {
+            vaccineNames[v] = "vaccine_" + v;
+            added[v] = new LongAdder();
+            reserved[v] = new LongAdder();
+            canceled[v] = new LongAdder();
+        }
+        for (LongAdder[] counts : outcomes) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        ConnectionManager.inTransaction(cm -> {
+            PreparedStatement caregiver = cm.prepareStatement(
+                    "INSERT INTO Caregivers (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)");
+            for (int c = 0; c < caregivers; c++) {
+                caregiverAccounts[c] = new Caregiver.CaregiverBuilder(String.format("caregiver_%05d", c), salt, hash)
+                        .build();
+                caregiver.setString(1, caregiverAccounts[c].getUsername());
+                caregiver.setBytes(2, salt);
+                caregiver.setBytes(3, hash);
+                caregiver.setString(4, params.encode());
+                caregiver.addBatch();
+            }
+            caregiver.executeBatch();
+
+            PreparedStatement patient = cm.prepareStatement(
+                    "INSERT INTO Patients (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)");
+            for (int p = 0; p < patients; p++) {
+                patient.setString(1, patientName(p));
+                patient.setBytes(2, salt);
+                patient.setBytes(3, hash);
+                patient.setString(4, params.encode());
+                patient.addBatch();
+            }
+            patient.executeBatch();
+
+            PreparedStatement vaccine = cm.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)");
+            for (String name : vaccineNames) {
+                vaccine.setString(1, name);
+                vaccine.setInt(2, initialDoses);
+                vaccine.addBatch();
+            }
+            vaccine.executeBatch();
+            return null;
+        });
+        AvailabilityIndex.get();
+        VaccineInventory.get();
+    }
+
+    private void run() throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Samples[][] samples = new Samples[threads][OPERATIONS.length];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Samples[] mine = samples[t];
+            for (int o = 0; o < OPERATIONS.length; o++) {
+                mine[o] = new Samples();
+            }
+            workers[t] = new Thread(() -> work(deadline, mine), "load-" + t);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        report(samples, elapsed);
+    }
+
+    private void work(long deadline, Samples[] samples) {
+        int total = 0;
+        for (int weight : mix) {
+            total += weight;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(total);
+            int operation = 0;
+            while (pick >= mix[operation]) {
+                pick -= mix[operation];
+                operation++;
+            }
+            long begin = System.nanoTime();
+            int outcome;
+            try {
+                outcome = perform(operation, random);
+            } catch (SQLException | RuntimeException e) {
+                outcome = 2;
+            }
+            samples[operation].add(System.nanoTime() - begin);
+            outcomes[operation][outcome].increment();
+        }
+    }
+
+    // 0 = succeeded, 1 = rejected
+    private int perform(int operation, ThreadLocalRandom random) throws SQLException {
+        int day = EpochDay.of(FIRST_DAY) + random.nextInt(days);
+        int v = random.nextInt(vaccines);
+        switch (operation) {
+            case UPLOAD:
+                try {
+                    caregiverAccounts[random.nextInt(caregivers)].uploadAvailability(day);
+                    return 0;
+                } catch (SQLException e) {
+                    // Already available or already booked that day
+                    return 1;
+                }
+            case RESERVE: {
+                Reservation reservation;
+                try {
+                    reservation = new Reservation.ReservationBuilder(day, patientName(random.nextInt(patients)),
+                            vaccineNames[v]).reserve();
+                } catch (IllegalStateException e) {
+                    return 1;
+                }
+                if (!appointmentIds.add(reservation.getAppointmentId())) {
+                    duplicateIds.incrementAndGet();
+                }
+                reserved[v].increment();
+                booked.add(reservation);
+                return 0;
+            }
+            case CANCEL: {
+                Reservation reservation = booked.poll();
+                if (reservation == null) {
+                    return 1;
+                }
+                if (new Reservation.ReservationGetter(reservation.getAppointmentId()).cancel() == null) {
+                    // Only this worker holds the id, so it must still have been there
+                    lostCancels.incrementAndGet();
+                    return 2;
+                }
+                canceled[Arrays.asList(vaccineNames).indexOf(reservation.getVaccineName())].increment();
+                return 0;
+            }
+            default: {
+                int doses = 1 + random.nextInt(5);
+                VaccineInventory.get().add(vaccineNames[v], doses);
+                added[v].add(doses);
+                return 0;
+            }
+        }
+    }
+
+    private void report(Samples[][] samples, double elapsed) {
+        long operations = 0;
+        System.out.printf("%-8s %9s %9s %9s %9s %10s %10s %10s %10s%n", "op", "ok", "rejected", "failed",
+                "ops/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (int o = 0; o < OPERATIONS.length; o++) {
+            int count = 0;
+            for (Samples[] thread : samples) {
+                count += thread[o].size;
+            }
+            long[] all = new long[count];
+            int at = 0;
+            for (Samples[] thread : samples) {
+                System.arraycopy(thread[o].values, 0, all, at, thread[o].size);
+                at += thread[o].size;
+            }
+            Arrays.sort(all);
+            operations += count;
+            System.out.printf("%-8s %9d %9d %9d %9.1f %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[o],
+                    outcomes[o][0].sum(), outcomes[o][1].sum(), outcomes[o][2].sum(), count / elapsed,
+                    percentileMicros(all, 0.50), percentileMicros(all, 0.99), percentileMicros(all, 0.999),
+                    percentileMicros(all, 1.0));
+        }
+        System.out.printf("%d operations from %d threads in %.1f s, %.1f ops/s%n", operations, threads, elapsed,
+                operations / elapsed);
+    }
+
+    private static double percentileMicros(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1000.0;
+    }
+
+    private List<String> check() throws SQLException {
+        List<String> violations = new ArrayList<>();
+        VaccineInventory inventory = VaccineInventory.get();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            try (ResultSet resultSet = cm.prepareStatement("SELECT C_username, Day, COUNT(*) AS n " +
+                    "FROM Reservations GROUP BY C_username, Day HAVING COUNT(*) > 1").executeQuery()) {
+                while (resultSet.next()) {
+                    violations.add("caregiver " + resultSet.getString("C_username") + " is booked " +
+                            resultSet.getInt("n") + " times on " + EpochDay.toString(resultSet.getInt("Day")));
+                }
+            }
+            try (ResultSet resultSet = cm.prepareStatement("SELECT r.C_username, r.Day FROM Reservations AS r " +
+                    "JOIN Availabilities AS a ON a.Username = r.C_username AND a.Day = r.Day").executeQuery()) {
+                while (resultSet.next()) {
+                    violations.add("caregiver " + resultSet.getString("C_username") + " is booked and available on " +
+                            EpochDay.toString(resultSet.getInt("Day")));
+                }
+            }
+            try (ResultSet resultSet = cm.prepareStatement("SELECT appointment_id, COUNT(*) AS n FROM Reservations " +
+                    "GROUP BY appointment_id HAVING COUNT(*) > 1").executeQuery()) {
+                while (resultSet.next()) {
+                    violations.add("appointment id " + resultSet.getInt("appointment_id") + " is used " +
+                            resultSet.getInt("n") + " times");
+                }
+            }
+            if (duplicateIds.get() > 0) {
+                violations.add(duplicateIds.get() + " appointment ids were handed out twice");
+            }
+            if (lostCancels.get() > 0) {
+                violations.add(lostCancels.get() + " booked appointments were gone when canceled");
+            }
+
+            for (int v = 0; v < vaccines; v++) {
+                String name = vaccineNames[v];
+                long expected = initialDoses + added[v].sum() - reserved[v].sum() + canceled[v].sum();
+                int inMemory = inventory.getDoses(name);
+                PreparedStatement doses = cm.prepareStatement("SELECT Doses FROM Vaccines WHERE Name = ?");
+                doses.setString(1, name);
+                int stored;
+                try (ResultSet resultSet = doses.executeQuery()) {
+                    stored = resultSet.next() ? resultSet.getInt("Doses") : -1;
+                }
+                if (inMemory < 0 || stored < 0 || inMemory != expected || stored != expected) {
+                    violations.add(name + " has " + inMemory + " doses in memory and " + stored +
+                            " in the table, expected " + expected);
+                }
+                PreparedStatement bookings = cm.prepareStatement(
+                        "SELECT COUNT(*) AS n FROM Reservations WHERE Vaccine_name = ?");
+                bookings.setString(1, name);
+                try (ResultSet resultSet = bookings.executeQuery()) {
+                    resultSet.next();
+                    long open = reserved[v].sum() - canceled[v].sum();
+                    if (resultSet.getLong("n") != open) {
+                        violations.add(name + " has " + resultSet.getLong("n") + " reservations, expected " + open);
+                    }
+                }
+            }
+
+            // The index counted by day, by caregiver and by bookings
+            long indexed = 0;
+            long indexedByCaregiver = 0;
+            long booked = 0;
+            AvailabilityIndex index = AvailabilityIndex.get();
+            int firstDay = EpochDay.of(FIRST_DAY);
+            for (int d = 0; d < days; d++) {
+                indexed += index.count(firstDay + d);
+                booked += index.bookedCount(firstDay + d);
+            }
+            for (Caregiver caregiver : caregiverAccounts) {
+                indexedByCaregiver += index.availableDays(caregiver.getUsername(), firstDay, firstDay + days - 1).length;
+            }
+            if (indexedByCaregiver != indexed) {
+                violations.add("the availability index has " + indexed + " entries by day and " +
+                        indexedByCaregiver + " by caregiver");
+            }
+            try (ResultSet resultSet = cm.prepareStatement("SELECT COUNT(*) AS n FROM Availabilities")
+                    .executeQuery()) {
+                resultSet.next();
+                if (resultSet.getLong("n") != indexed) {
+                    violations.add("the availability index has " + indexed + " entries, the table has " +
+                            resultSet.getLong("n"));
+                }
+            }
+            try (ResultSet resultSet = cm.prepareStatement("SELECT COUNT(*) AS n FROM Reservations")
+                    .executeQuery()) {
+                resultSet.next();
+                if (resultSet.getLong("n") != booked) {
+                    violations.add("the availability index has " + booked + " bookings, the table has " +
+                            resultSet.getLong("n"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return violations;
+    }
+
+    private static String patientName(int p) {
+        return String.format("patient_%06d", p);
+    }
+}
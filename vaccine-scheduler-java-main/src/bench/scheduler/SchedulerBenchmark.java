@@ -0,0 +1,385 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.Reservation;
+import scheduler.model.VaccineInventory;
+import scheduler.util.EpochDay;
+import scheduler.util.PasswordHasher;
+import scheduler.util.Tokenizer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Benchmarks for the Scheduler commands against a seeded temporary SQLite database, one JVM per size:
+//   java -cp <classes>:<sqlite-jdbc> scheduler.SchedulerBenchmark [options]
+//     --sizes 1000,100000,1000000   reservations seeded, one forked JVM per size
+//     --warmup 200 --iterations 1000 operations per benchmark (KDF-bound ones run 1/50th of that)
+//     --only reserve,cancel         run a subset
+//     --schema <path>               base schema, defaults to src/main/resources/sqlite/create.sql
+public class SchedulerBenchmark {
+
+    private static final String PASSWORD = "Bench#Passw0rd";
+    private static final String PATIENT = "bench_patient";
+    private static final String CAREGIVER = "bench_caregiver";
+    private static final String VACCINE = "bench_vaccine";
+    // Seeded reservations start here, the days reserve books start at BOOKING_START
+    private static final LocalDate SEED_START = LocalDate.of(2025, 1, 1);
+    private static final LocalDate SEARCH_START = LocalDate.of(2028, 1, 1);
+    private static final LocalDate BOOKING_START = LocalDate.of(2030, 1, 1);
+    private static final int SEARCH_DAYS = 30;
+    private static final int OWN_APPOINTMENTS = 100;
+    private static final int SLOW = 50;
+
+    private static final String[] BENCHMARKS = {"searchCaregiverSchedule", "showAppointments", "reserve", "cancel",
+            "addDoses", "loginPatient", "createPatient"};
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    private static final class Result {
+        final String name;
+        final int operations;
+        final long[] latencies;
+        final long elapsedNanos;
+        final long allocatedBytes;
+
+        Result(String name, int operations, long[] latencies, long elapsedNanos, long allocatedBytes) {
+            this.name = name;
+            this.operations = operations;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double percentileMicros(double p) {
+            int i = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, i))] / 1000.0;
+        }
+
+        String format(int size) {
+            double seconds = elapsedNanos / 1e9;
+            String allocation = allocatedBytes < 0 ? String.format("%14s %12s", "n/a", "n/a")
+                    : String.format("%14d %12.1f", allocatedBytes / operations, allocatedBytes / seconds / (1 << 20));
+            return String.format("%-10d %-24s %8d %12.1f %10.1f %10.1f %s", size, name, operations,
+                    operations / seconds, percentileMicros(0.50), percentileMicros(0.99), allocation);
+        }
+    }
+
+    private final int size;
+    private final int warmup;
+    private final int iterations;
+    private final int caregivers;
+    private final int patients;
+    private final PrintStream out = System.out;
+    // Command output goes nowhere
+    private final Session session = new Session(new PrintStream(OutputStream.nullOutputStream()));
+    private final Random random = new Random(42);
+
+    private SchedulerBenchmark(int size, int warmup, int iterations) {
+        this.size = size;
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.caregivers = Math.max(50, size / 200);
+        this.patients = Math.max(100, size / 20);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String sizes = "1000,100000,1000000";
+        String only = String.join(",", BENCHMARKS);
+        String schema = "src/main/resources/sqlite/create.sql";
+        int warmup = 200;
+        int iterations = 1000;
+        int size = -1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = args[i + 1];
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--only":
+                    only = args[i + 1];
+                    break;
+                case "--schema":
+                    schema = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        if (size >= 0) {
+            // Forked run for a single size
+            new SchedulerBenchmark(size, warmup, iterations).run(Paths.get(schema), Arrays.asList(only.split(",")));
+            return;
+        }
+
+        System.out.println(header());
+        for (String s : sizes.split(",")) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            // Pass on -D settings such as KdfIterations or StatementCacheSize
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (!name.startsWith("java.") && !name.startsWith("sun.") && !name.startsWith("jdk.")
+                        && !name.startsWith("os.") && !name.startsWith("user.") && !name.startsWith("file.")
+                        && !name.startsWith("line.") && !name.startsWith("path.") && !name.equals("DBPath")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            command.add(SchedulerBenchmark.class.getName());
+            command.addAll(Arrays.asList("--size", s.trim(), "--warmup", String.valueOf(warmup),
+                    "--iterations", String.valueOf(iterations), "--only", only, "--schema", schema));
+            int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (exit != 0) {
+                System.out.println("Benchmark run for size " + s.trim() + " failed with exit code " + exit);
+                System.exit(exit);
+            }
+        }
+    }
+
+    private static String header() {
+        return String.format("%-10s %-24s %8s %12s %10s %10s %14s %12s", "size", "benchmark", "ops", "ops/s",
+                "p50 us", "p99 us", "alloc B/op", "alloc MB/s");
+    }
+
+    private void run(Path schema, List<String> only) throws Exception {
+        long start = System.nanoTime();
+        BenchDatabase db = BenchDatabase.create("scheduler-bench-", schema);
+        try {
+            seed();
+            AvailabilityIndex.get();
+            VaccineInventory.get();
+            System.err.printf("seeded %d reservations in %.1f s%n", size, (System.nanoTime() - start) / 1e9);
+
+            for (String name : BENCHMARKS) {
+                if (only.contains(name)) {
+                    out.println(benchmark(name).format(size));
+                }
+            }
+        } finally {
+            db.delete();
+        }
+    }
+
+    private Result benchmark(String name) throws Exception {
+        switch (name) {
+            case "searchCaregiverSchedule":
+                loginAs(PATIENT, false);
+                return measure(name, warmup, iterations,
+                        i -> Scheduler.searchCaregiverScheduleMethod(session, EpochDay.of(SEARCH_START)
+                                + random.nextInt(SEARCH_DAYS)));
+            case "showAppointments":
+                loginAs(PATIENT, false);
+                return measure(name, warmup, iterations, i -> Scheduler.showAppointmentsMethod(session));
+            case "reserve":
+                // Every caregiver is available on every booking day, so operation i books day i / caregivers
+                loginAs(PATIENT, false);
+                return measure(name, warmup, iterations,
+                        i -> Scheduler.reserveMethod(session, EpochDay.of(BOOKING_START) + i / caregivers, VACCINE));
+            case "cancel": {
+                // Cancels what the reserve benchmark booked, reserving first if it didn't run
+                loginAs(PATIENT, false);
+                List<Integer> ids = bookedIds();
+                for (int i = ids.size(); i < warmup + iterations; i++) {
+                    Scheduler.reserveMethod(session, EpochDay.of(BOOKING_START) + i / caregivers, VACCINE);
+                }
+                List<Integer> booked = bookedIds();
+                return measure(name, warmup, iterations, i -> Scheduler.cancelMethod(session, booked.get(i)));
+            }
+            case "addDoses": {
+                loginAs(CAREGIVER, true);
+                Tokenizer tokens = new Tokenizer().reset("add_doses " + VACCINE + " 1");
+                return measure(name, warmup, iterations, i -> Scheduler.addDoses(session, tokens));
+            }
+            case "loginPatient": {
+                logout();
+                Tokenizer tokens = new Tokenizer().reset("login_patient " + PATIENT + " " + PASSWORD);
+                Tokenizer logout = new Tokenizer().reset("logout");
+                return measure(name, Math.max(1, warmup / SLOW), Math.max(10, iterations / SLOW), i -> {
+                    Scheduler.loginPatient(session, tokens);
+                    Scheduler.logout(session, logout);
+                });
+            }
+            case "createPatient":
+                logout();
+                return measure(name, Math.max(1, warmup / SLOW), Math.max(10, iterations / SLOW),
+                        i -> Scheduler.createPatient(session, new Tokenizer().reset("create_patient new_patient_" + i + " " + PASSWORD)));
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    // Runs warm-up operations, then the measured ones.
+    // Operation numbers continue from warm-up into the measured run so each one is distinct.
+    private Result measure(String name, int warmupOperations, int operations, Operation operation)
+            throws Exception {
+        for (int i = 0; i < warmupOperations; i++) {
+            operation.run(i);
+        }
+        long[] latencies = new long[operations];
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            long begin = System.nanoTime();
+            operation.run(warmupOperations + i);
+            latencies[i] = System.nanoTime() - begin;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        Arrays.sort(latencies);
+        return new Result(name, operations, latencies, elapsed,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+    }
+
+    // Bytes allocated by this thread so far, or -1 when the JVM can't tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private void loginAs(String username, boolean caregiver) {
+        logout();
+        if (caregiver) {
+            Scheduler.loginCaregiver(session, new Tokenizer().reset("login_caregiver " + username + " " + PASSWORD));
+        } else {
+            Scheduler.loginPatient(session, new Tokenizer().reset("login_patient " + username + " " + PASSWORD));
+        }
+    }
+
+    private void logout() {
+        Scheduler.logout(session, new Tokenizer().reset("logout"));
+    }
+
+    private List<Integer> bookedIds() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement("SELECT appointment_id FROM Reservations " +
+                    "WHERE P_username = ? AND Day >= ? ORDER BY appointment_id");
+            statement.setString(1, PATIENT);
+            statement.setInt(2, EpochDay.of(BOOKING_START));
+            List<Integer> ids = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getInt("appointment_id"));
+                }
+            }
+            return ids;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Caregivers, patients and reservations spread over the days from SEED_START so no caregiver
+    // is booked twice on a day, availability for the search and reserve benchmarks, the benchmark
+    // patient's own appointments and a vaccine with enough doses for every booking.
+    // Every account shares one password hash so seeding doesn't run the KDF per account.
+    private void seed() throws SQLException {
+        PasswordHasher.Params params = PasswordHasher.current();
+        byte[] salt = PasswordHasher.generateSalt();
+        byte[] hash = PasswordHasher.hash(PASSWORD, salt, params);
+        int bookingDays = (warmup + iterations) / caregivers + 2;
+
+        ConnectionManager.inTransaction(cm -> {
+            PreparedStatement caregiver = cm.prepareStatement(
+                    "INSERT INTO Caregivers (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)");
+            for (int c = 0; c <= caregivers; c++) {
+                caregiver.setString(1, c == caregivers ? CAREGIVER : caregiverName(c));
+                caregiver.setBytes(2, salt);
+                caregiver.setBytes(3, hash);
+                caregiver.setString(4, params.encode());
+                caregiver.addBatch();
+            }
+            caregiver.executeBatch();
+
+            PreparedStatement patient = cm.prepareStatement(
+                    "INSERT INTO Patients (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)");
+            for (int p = 0; p <= patients; p++) {
+                patient.setString(1, p == patients ? PATIENT : "patient_" + p);
+                patient.setBytes(2, salt);
+                patient.setBytes(3, hash);
+                patient.setString(4, params.encode());
+                patient.addBatch();
+                if (p % 10_000 == 0) {
+                    patient.executeBatch();
+                }
+            }
+            patient.executeBatch();
+
+            PreparedStatement vaccine = cm.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)");
+            vaccine.setString(1, VACCINE);
+            vaccine.setInt(2, 10_000_000);
+            vaccine.executeUpdate();
+
+            PreparedStatement reservation = cm.prepareStatement(Reservation.INSERT_RESERVATION);
+            for (int r = 0; r < size; r++) {
+                addReservation(reservation, SEED_START.plusDays(r / caregivers), caregiverName(r % caregivers),
+                        "patient_" + (r % patients), r + 1);
+                if (r % 10_000 == 0) {
+                    reservation.executeBatch();
+                }
+            }
+            // The benchmark patient's own appointments, on days after the seeded ones
+            long ownStart = size / caregivers + 1;
+            for (int r = 0; r < OWN_APPOINTMENTS; r++) {
+                addReservation(reservation, SEED_START.plusDays(ownStart + r / caregivers),
+                        caregiverName(r % caregivers), PATIENT, size + r + 1);
+            }
+            reservation.executeBatch();
+
+            PreparedStatement availability = cm.prepareStatement("INSERT INTO Availabilities VALUES (?, ?)");
+            for (int d = 0; d < SEARCH_DAYS + bookingDays; d++) {
+                LocalDate day = d < SEARCH_DAYS ? SEARCH_START.plusDays(d) : BOOKING_START.plusDays(d - SEARCH_DAYS);
+                for (int c = 0; c < caregivers; c++) {
+                    availability.setInt(1, EpochDay.of(day));
+                    availability.setString(2, caregiverName(c));
+                    availability.addBatch();
+                }
+                availability.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    private static void addReservation(PreparedStatement statement, LocalDate day, String caregiver, String patient,
+                                       int id) throws SQLException {
+        statement.setInt(1, EpochDay.of(day));
+        statement.setString(2, caregiver);
+        statement.setString(3, patient);
+        statement.setString(4, VACCINE);
+        statement.setInt(5, id);
+        statement.addBatch();
+    }
+
+    private static String caregiverName(int c) {
+        return String.format("caregiver_%06d", c);
+    }
+}
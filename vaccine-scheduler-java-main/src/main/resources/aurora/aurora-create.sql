@@ -1,3 +1,7 @@
+-- Base schema for Storage=postgresql (PostgreSQL or Aurora PostgreSQL), the same tables as
+-- resources/sqlite/create.sql. scheduler.db.SchemaMigrator applies the later changes (sequences,
+-- indexes, ...) when the scheduler starts and records them in Schema_version.
+
 CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BYTEA,
@@ -7,7 +11,8 @@ CREATE TABLE Caregivers (
 
 CREATE TABLE Availabilities (
     Time date,
-    Username varchar(255) REFERENCES Caregivers,
+    Username varchar(255) NOT NULL,
+    FOREIGN KEY (Username) REFERENCES Caregivers(Username) ON DELETE CASCADE,
     PRIMARY KEY (Time, Username)
 );
 
@@ -15,4 +20,30 @@ CREATE TABLE Vaccines (
     Name varchar(255),
     Doses int,
     PRIMARY KEY (Name)
-);
\ No newline at end of file
+);
+
+CREATE TABLE Patients (
+    Username varchar(255),
+    Salt BYTEA,
+    Hash BYTEA,
+    PRIMARY KEY (Username)
+);
+
+CREATE TABLE Reservations (
+    Time date,
+    C_username varchar(255) NOT NULL,
+    P_username varchar(255) NOT NULL,
+    Vaccine_name varchar(255) NOT NULL,
+    appointment_id int,
+    FOREIGN KEY (C_username) REFERENCES Caregivers(Username) ON DELETE CASCADE,
+    FOREIGN KEY (P_username) REFERENCES Patients(Username) ON DELETE CASCADE,
+    FOREIGN KEY (Vaccine_name) REFERENCES Vaccines(Name) ON DELETE CASCADE,
+    PRIMARY KEY (appointment_id)
+);
+
+-- Migrations applied so far, a single row
+CREATE TABLE Schema_version (
+    Version int NOT NULL
+);
+
+INSERT INTO Schema_version VALUES (0);
@@ -1,3 +1,6 @@
+-- Base schema. scheduler.db.SchemaMigrator applies the later changes (sequences, indexes, ...)
+-- when the scheduler starts.
+
 CREATE TABLE Caregivers (
     -- Each caregiver can be assigned to many reservations but each reservation
     -- is assigned to exactly one caregiver.
@@ -27,8 +30,8 @@ CREATE TABLE Vaccines (
 CREATE TABLE Patients (
     -- Each patient can book many reservation but each reservation must be booked by exactly one patient.
     Username varchar(255),
-
-
+    Salt BINARY(16),
+    Hash BINARY(16),
     PRIMARY KEY (Username)
 );
 
@@ -48,6 +51,3 @@ CREATE TABLE Reservations (
     -- Each reservation is linked to one date, caregiver username, vaccine name and patient username.
     PRIMARY KEY (appointment_id)
 );
-
-
-
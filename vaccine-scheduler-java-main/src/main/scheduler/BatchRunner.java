@@ -0,0 +1,292 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.SlowQueryLog;
+import scheduler.metrics.Metrics;
+import scheduler.model.VaccineInventory;
+import scheduler.util.Config;
+import scheduler.util.Tokenizer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs a script of commands in one session, writing runs of upload_availability and add_doses lines in
+// batches of up to BatchChunkSize; prints each result as "<line number>: <output>".
+public class BatchRunner {
+
+    private static final String UPLOAD = "upload_availability";
+    private static final String ADD_DOSES = "add_doses";
+    // A run value whose date or number did not parse
+    private static final int INVALID = Integer.MIN_VALUE;
+
+    private final int chunkSize;
+    private final NumberedOutput numbered;
+    private final Session session;
+
+    // The run of batchable lines not written yet: their line numbers, their date (upload_availability)
+    // or doses (add_doses), and the vaccines of add_doses
+    private String runKind = null;
+    private int runSize = 0;
+    private int[] runLines = new int[64];
+    private int[] runValues = new int[64];
+    private final List<String> runVaccines = new ArrayList<>();
+
+    public BatchRunner(int chunkSize, PrintStream out) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.numbered = new NumberedOutput(out);
+        this.session = new Session(new PrintStream(numbered, false, StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (!Scheduler.start()) {
+            return;
+        }
+        BufferedReader in = args.length == 0 || args[0].equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        int lines;
+        // System.out flushes every line; results are flushed at the end and when the buffer fills
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, StandardCharsets.UTF_8);
+        try (BufferedReader reader = in) {
+            lines = new BatchRunner(Config.getInt("BatchChunkSize", 1000), out).run(reader);
+        } finally {
+            out.flush();
+            ConnectionManager.shutdown();
+            Metrics.shutdown();
+        }
+        System.err.printf("%d lines in %.2f s%n", lines, (System.nanoTime() - start) / 1e9);
+    }
+
+    // Run every line up to the end of the input or quit, returns the number of lines read
+    public int run(BufferedReader in) throws IOException {
+        int lineNumber = 0;
+        String line;
+        Tokenizer args = session.args;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String kind = batchKind(args.reset(line));
+            if (kind == null || !kind.equals(runKind)) {
+                flushRun();
+            }
+            if (kind != null) {
+                runKind = kind;
+                addToRun(lineNumber, args);
+                if (runSize >= chunkSize) {
+                    flushRun();
+                }
+                continue;
+            }
+            numbered.setLine(lineNumber);
+            boolean more;
+            try {
+                more = Scheduler.execute(session, line);
+            } catch (RuntimeException e) {
+                // What the terminal prints for it too, see CommandExecutor.execute
+                session.out.println("Please try again!");
+                more = true;
+            }
+            if (!more) {
+                break;
+            }
+        }
+        flushRun();
+        session.out.flush();
+        return lineNumber;
+    }
+
+    // Lines that can be written together, given who is logged in now; anything else runs on its own
+    // and reports the usual errors
+    private String batchKind(Tokenizer args) {
+        if (session.currentCaregiver == null || args.count() == 0) {
+            return null;
+        }
+        if (args.count() == 2 && args.is(0, UPLOAD)) {
+            return UPLOAD;
+        }
+        if (args.count() == 3 && args.is(0, ADD_DOSES) && positive(args, 2)) {
+            return ADD_DOSES;
+        }
+        return null;
+    }
+
+    // Only positive dose counts are batched; anything else runs on its own and gets the terminal's result
+    private static boolean positive(Tokenizer args, int i) {
+        try {
+            return args.parseInt(i) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // What the line's results depend on, parsed now; a bad date is reported when the run is written
+    private void addToRun(int lineNumber, Tokenizer args) {
+        if (runSize == runLines.length) {
+            runLines = Arrays.copyOf(runLines, runSize * 2);
+            runValues = Arrays.copyOf(runValues, runSize * 2);
+        }
+        int value;
+        try {
+            value = UPLOAD.equals(runKind) ? args.epochDay(1) : args.parseInt(2);
+        } catch (IllegalArgumentException e) {
+            value = INVALID;
+        }
+        if (ADD_DOSES.equals(runKind)) {
+            runVaccines.add(args.string(1));
+        }
+        runLines[runSize] = lineNumber;
+        runValues[runSize] = value;
+        runSize++;
+    }
+
+    private void flushRun() {
+        if (runSize == 0) {
+            return;
+        }
+        SlowQueryLog.setCommand(runKind);
+        String[] results;
+        try {
+            results = UPLOAD.equals(runKind) ? uploadAvailability() : addDoses();
+        } finally {
+            SlowQueryLog.setCommand(null);
+        }
+        for (int i = 0; i < results.length; i++) {
+            report(runLines[i], results[i]);
+        }
+        runKind = null;
+        runSize = 0;
+        runVaccines.clear();
+    }
+
+    private String[] uploadAvailability() {
+        String[] results = new String[runSize];
+        int[] days = new int[runSize];
+        int[] positions = new int[runSize];
+        int count = 0;
+        for (int i = 0; i < runSize; i++) {
+            if (runValues[i] == INVALID) {
+                results[i] = "Please enter a valid date!";
+            } else {
+                days[count] = runValues[i];
+                positions[count] = i;
+                count++;
+            }
+        }
+        if (count > 0) {
+            try {
+                boolean[] uploaded = session.currentCaregiver.uploadAvailability(Arrays.copyOf(days, count));
+                for (int j = 0; j < uploaded.length; j++) {
+                    results[positions[j]] = uploaded[j] ? "Availability uploaded!"
+                            : "Error occurred when uploading availability";
+                }
+            } catch (SQLException e) {
+                for (int j = 0; j < count; j++) {
+                    results[positions[j]] = "Error occurred when uploading availability";
+                }
+            }
+        }
+        return results;
+    }
+
+    private String[] addDoses() {
+        String[] results = new String[runSize];
+        // Every run value is a positive number, see batchKind
+        Map<String, Integer> added = new LinkedHashMap<>();
+        for (int i = 0; i < runSize; i++) {
+            added.merge(runVaccines.get(i), runValues[i], Integer::sum);
+        }
+        String result;
+        try {
+            VaccineInventory.get().addAll(added);
+            result = "Doses updated!";
+        } catch (SQLException e) {
+            result = "Error occurred when adding doses";
+        }
+        Arrays.fill(results, result);
+        return results;
+    }
+
+    private void report(int lineNumber, String output) {
+        numbered.setLine(lineNumber);
+        session.out.println(output);
+    }
+
+    // Puts "<line number>: " in front of every line written through it
+    private static final class NumberedOutput extends OutputStream {
+        private final OutputStream out;
+        private final byte[] prefix = new byte[16];
+        private int prefixLength = 0;
+        private boolean lineStart = true;
+
+        NumberedOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        // The line number for the output from now on
+        void setLine(int lineNumber) {
+            // Digits from the right, then ": "
+            int i = prefix.length - 2;
+            prefix[i] = ':';
+            prefix[i + 1] = ' ';
+            int n = lineNumber;
+            do {
+                prefix[--i] = (byte) ('0' + n % 10);
+                n /= 10;
+            } while (n > 0);
+            prefixLength = prefix.length - i;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart) {
+                out.write(prefix, prefix.length - prefixLength, prefixLength);
+            }
+            out.write(b);
+            lineStart = b == '\n';
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (lineStart) {
+                    out.write(prefix, prefix.length - prefixLength, prefixLength);
+                    lineStart = false;
+                }
+                int newline = off;
+                while (newline < end && b[newline] != '\n') {
+                    newline++;
+                }
+                if (newline < end) {
+                    out.write(b, off, newline + 1 - off);
+                    lineStart = true;
+                    off = newline + 1;
+                } else {
+                    out.write(b, off, end - off);
+                    off = end;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
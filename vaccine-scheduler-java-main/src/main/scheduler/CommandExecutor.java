@@ -0,0 +1,262 @@
+package scheduler;
+
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs command lines off the thread that reads them: in order within a session, sessions in parallel,
+// at most CommandConcurrency at once. Virtual threads when the JVM has them (Java 21+).
+public class CommandExecutor {
+
+    private static volatile CommandExecutor instance = null;
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    // Command timeouts; canceled timeouts are dropped at once, not kept until they would have fired
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "command-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore limiter;
+    private final long timeoutMillis;
+
+    // Per-session queue of commands, drained by at most one thread at a time
+    static final class Lane {
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+        private boolean draining = false;
+    }
+
+    private final class Task implements Runnable {
+        private final Session session;
+        private final String line;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private Thread runner = null;
+        // Past the concurrency limit and into Scheduler.execute
+        private boolean executing = false;
+
+        Task(Session session, String line) {
+            this.session = session;
+            this.line = line;
+        }
+
+        @Override
+        public void run() {
+            if (!start()) {
+                // Timed out or canceled while queued
+                return;
+            }
+            boolean acquired = false;
+            try {
+                limiter.acquire();
+                acquired = true;
+                if (begin()) {
+                    result.complete(Scheduler.execute(session, line));
+                }
+            } catch (InterruptedException e) {
+                result.cancel(false);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                if (acquired) {
+                    limiter.release();
+                }
+                finish();
+            }
+        }
+
+        private synchronized boolean start() {
+            if (result.isDone()) {
+                return false;
+            }
+            runner = Thread.currentThread();
+            return true;
+        }
+
+        // False if the command timed out or was canceled while waiting for a permit
+        private synchronized boolean begin() {
+            if (result.isDone()) {
+                return false;
+            }
+            executing = true;
+            return true;
+        }
+
+        // Time is up: fails the command unless it has already begun
+        private synchronized void expire() {
+            if (!executing) {
+                result.completeExceptionally(new TimeoutException());
+            }
+        }
+
+        private synchronized void finish() {
+            runner = null;
+            // An interrupt that arrived after the command returned must not leak into the next one
+            Thread.interrupted();
+        }
+
+        // Called when the result was completed by someone else: a timeout or a cancel
+        private synchronized void interrupt() {
+            if (runner != null && runner != Thread.currentThread()) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    public CommandExecutor(int concurrency, long timeoutMillis) {
+        this.executor = newExecutor();
+        this.limiter = new Semaphore(concurrency, true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // The shared executor, configured from CommandConcurrency and CommandTimeoutMs
+    public static CommandExecutor get() {
+        CommandExecutor executor = instance;
+        if (executor == null) {
+            synchronized (CommandExecutor.class) {
+                executor = instance;
+                if (executor == null) {
+                    int concurrency = Config.getInt("CommandConcurrency", Config.getInt("PoolMaxSize", 8));
+                    executor = new CommandExecutor(concurrency, Config.getLong("CommandTimeoutMs", 30000));
+                    instance = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    public static void shutdown() {
+        synchronized (CommandExecutor.class) {
+            if (instance != null) {
+                instance.executor.shutdownNow();
+                instance = null;
+            }
+        }
+    }
+
+    // Queue a command line for the session. The future holds false once the session quit,
+    // and fails with TimeoutException when the command didn't start in time.
+    public CompletableFuture<Boolean> submit(Session session, String line) {
+        Task task = new Task(session, line);
+        if (timeoutMillis > 0) {
+            ScheduledFuture<?> timeout = timer.schedule(task::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+            task.result.whenComplete((continues, failure) -> timeout.cancel(false));
+        }
+        task.result.whenComplete((continues, failure) -> {
+            if (failure != null) {
+                task.interrupt();
+                Metrics.COMMAND_ABORTS.get(abortReason(failure)).increment();
+            }
+        });
+        Lane lane = session.lane;
+        boolean schedule;
+        synchronized (lane) {
+            lane.queue.add(task);
+            schedule = !lane.draining;
+            lane.draining = true;
+        }
+        if (schedule) {
+            executor.execute(() -> drain(lane));
+        }
+        return task.result;
+    }
+
+    // Run a command line for the session and wait for it, false once the session quit
+    public boolean execute(Session session, String line) {
+        CompletableFuture<Boolean> result = submit(session, line);
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                session.out.println("Command timed out");
+            } else {
+                session.out.println("Please try again!");
+            }
+            return true;
+        } catch (CancellationException e) {
+            session.out.println("Command canceled");
+            return true;
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String abortReason(Throwable failure) {
+        if (failure instanceof TimeoutException) {
+            return "timeout";
+        }
+        return failure instanceof CancellationException ? "canceled" : "error";
+    }
+
+    // One command per turn, so a session with many queued commands doesn't hold on to a thread
+    private void drain(Lane lane) {
+        Task task;
+        synchronized (lane) {
+            task = lane.queue.poll();
+            if (task == null) {
+                lane.draining = false;
+                return;
+            }
+        }
+        try {
+            task.run();
+        } finally {
+            boolean more;
+            synchronized (lane) {
+                more = !lane.queue.isEmpty();
+                lane.draining = more;
+            }
+            if (more) {
+                executor.execute(() -> drain(lane));
+            }
+        }
+    }
+
+    // A thread for work that mostly waits, like reading from a client: virtual when available
+    public static Thread newThread(String name, Runnable runnable) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, runnable);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "command-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package scheduler;
+
+import scheduler.util.Tokenizer;
+
+// The commands the scheduler understands, looked up by the first token of a line without making a
+// String. Anything can add a command with register.
+public class CommandRegistry {
+
+    // Runs one command line; args holds the whole line, token 0 being the command's name
+    public interface Command {
+        void run(Session session, Tokenizer args);
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final Command command;
+
+        private Entry(String name, Command command) {
+            this.name = name;
+            this.command = command;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Command command() {
+            return command;
+        }
+    }
+
+    // Kept at most half full, a power of two in size
+    private volatile Entry[] table = new Entry[32];
+    private int size = 0;
+
+    // Add a command, or replace the one with the same name
+    public synchronized void register(String name, Command command) {
+        if (name.isEmpty() || name.chars().anyMatch(Character::isWhitespace)) {
+            throw new IllegalArgumentException("Invalid command name: \"" + name + "\"");
+        }
+        Entry[] current = table;
+        Entry[] next;
+        if ((size + 1) * 2 <= current.length) {
+            next = current.clone();
+        } else {
+            next = new Entry[current.length * 2];
+            for (Entry entry : current) {
+                if (entry != null) {
+                    next[slot(next, entry.name.hashCode(), entry.name)] = entry;
+                }
+            }
+        }
+        int slot = slot(next, name.hashCode(), name);
+        if (next[slot] == null) {
+            size++;
+        }
+        next[slot] = new Entry(name, command);
+        table = next;
+    }
+
+    // The slot holding name, or the empty one it would go into
+    private static int slot(Entry[] table, int hash, String name) {
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            if (table[i] == null || table[i].name.equals(name)) {
+                return i;
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // The command named by the line's first token, null when there is none
+    public Entry find(Tokenizer args) {
+        if (args.count() == 0) {
+            return null;
+        }
+        Entry[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = spread(args.hash(0)) & mask; ; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (args.is(0, entry.name)) {
+                return entry;
+            }
+        }
+    }
+}
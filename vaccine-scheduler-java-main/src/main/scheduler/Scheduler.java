@@ -1,120 +1,214 @@
 package scheduler;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.db.SlowQueryLog;
+import scheduler.metrics.Metrics;
+import scheduler.model.AvailabilityIndex;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
+import scheduler.model.Reservation;
 import scheduler.model.Vaccine;
+import scheduler.model.VaccineInventory;
+import scheduler.util.Config;
+import scheduler.util.EpochDay;
+import scheduler.util.Recurrence;
+import scheduler.util.Tokenizer;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Date;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    // The logged-in user lives in a Session, one per terminal or client connection (see SchedulerServer).
+    // The command handlers the benchmarks drive (src/bench/scheduler/SchedulerBenchmark.java) are package-private
+
+    // Queries run by the commands, public so QueryPlanCheck can verify the hot ones use an index
+    public static final String PATIENT_EXISTS = "SELECT * FROM Patients WHERE Username = ?";
+    public static final String CAREGIVER_EXISTS = "SELECT * FROM Caregivers WHERE Username = ?";
+    // Keyset pages of a user's appointments: after an id, between two epoch days (the smallest and
+    // largest int when there is no bound)
+    public static final String PATIENT_APPOINTMENTS = "SELECT r.appointment_id AS id, r.Vaccine_name AS vaccine, " +
+            "r.Day AS day, r.C_username AS other FROM Reservations AS r WHERE r.P_username = ? " +
+            "AND r.appointment_id > ? AND r.Day BETWEEN ? AND ? " +
+            "ORDER BY r.appointment_id ASC LIMIT ?;";
+    public static final String CAREGIVER_APPOINTMENTS = "SELECT r.appointment_id AS id, r.Vaccine_name AS vaccine, " +
+            "r.Day AS day, r.P_username AS other FROM Reservations AS r WHERE r.C_username = ? " +
+            "AND r.appointment_id > ? AND r.Day BETWEEN ? AND ? " +
+            "ORDER BY r.appointment_id ASC LIMIT ?;";
+    // The day bounds of show_appointments without from= or to=
+    static final int NO_BOUND_FROM = Integer.MIN_VALUE;
+    static final int NO_BOUND_TO = Integer.MAX_VALUE;
 
     public static void main(String[] args) {
+        if (!start()) {
+            return;
+        }
+        Session session = new Session(System.out);
+        printMenu(session);
+        // read input from user
+        serve(session, new BufferedReader(new InputStreamReader(System.in)));
+        CommandExecutor.shutdown();
+        ConnectionManager.shutdown();
+        Metrics.shutdown();
+    }
+
+    // Get the database and the in-memory state ready, false (after printing why) if that failed
+    static boolean start() {
+        // JMX and, with MetricsPort set, the Prometheus endpoint
+        Metrics.start();
+        // bring the database up to the schema this version expects
+        try {
+            SchemaMigrator.migrate();
+        } catch (SQLException e) {
+            System.out.println("Could not migrate the database schema: " + e.getMessage());
+            return false;
+        }
+        // load the availability index and the vaccine inventory up front so the first commands don't pay for it
+        try {
+            AvailabilityIndex.get();
+            VaccineInventory.get();
+        } catch (SQLException e) {
+            System.out.println("Could not load caregiver availability and vaccines: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    static void printMenu(Session session) {
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        session.out.println();
+        session.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        session.out.println("*** Please enter one of the following commands ***");
+        session.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        session.out.println("> create_caregiver <username> <password>");
+        session.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        session.out.println("> login_caregiver <username> <password>");
+        session.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
+        session.out.println("> search_caregiver_schedule <start> <end>");
+        session.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        session.out.println("> reserve_next <vaccine> [from-date]");
+        session.out.println("> upload_availability <date>");
+        session.out.println("> upload_availability <start> <end> [daily|weekdays|weekends|MON,WED,...|every:N]");
+        session.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
+        session.out.println("> add_doses <vaccine> <number>");
+        session.out.println("> show_appointments [after_id] [limit] [from=<date>] [to=<date>]");  // TODO: implement show_appointments (Part 2)
+        session.out.println("> logout");  // TODO: implement logout (Part 2)
+        session.out.println("> metrics");
+        session.out.println("> quit");
+        session.out.println();
+    }
 
-        // read input from user
-        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+    // Run the session's commands until quit or the end of the input
+    static void serve(Session session, BufferedReader r) {
         while (true) {
             // While users don't enter quit, continue to process various inputs
-            System.out.print("> ");
-            String response = "";
+            session.out.print("> ");
+            session.out.flush();
+            String response;
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
+                // The terminal or the connection is gone
+                return;
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
+            if (response == null) {
+                return;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            // run on the command executor, which keeps the session's commands in order
+            if (!CommandExecutor.get().execute(session, response)) {
+                session.out.flush();
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    // Every command, by name. Handlers get the session and the tokenized line.
+    private static final CommandRegistry COMMANDS = new CommandRegistry();
+
+    static {
+        COMMANDS.register("create_patient", Scheduler::createPatient);
+        COMMANDS.register("create_caregiver", Scheduler::createCaregiver);
+        COMMANDS.register("login_patient", Scheduler::loginPatient);
+        COMMANDS.register("login_caregiver", Scheduler::loginCaregiver);
+        COMMANDS.register("search_caregiver_schedule", Scheduler::searchCaregiverSchedule);
+        COMMANDS.register("reserve", Scheduler::reserve);
+        COMMANDS.register("reserve_next", Scheduler::reserveNext);
+        COMMANDS.register("upload_availability", Scheduler::uploadAvailability);
+        COMMANDS.register("cancel", Scheduler::cancel);
+        COMMANDS.register("add_doses", Scheduler::addDoses);
+        COMMANDS.register("show_appointments", Scheduler::showAppointments);
+        COMMANDS.register("logout", Scheduler::logout);
+        COMMANDS.register("metrics", (session, args) -> session.out.print(Metrics.prometheusText()));
+        COMMANDS.register("quit", (session, args) -> {
+            session.out.println("Bye!");
+            session.ended = true;
+        });
+    }
+
+    // For adding commands of one's own before the sessions start
+    public static CommandRegistry commands() {
+        return COMMANDS;
+    }
+
+    // Run one command line, false when it was quit
+    static boolean execute(Session session, CharSequence line) {
+        // split the user input on spaces, reusing the session's tokenizer
+        Tokenizer args = session.args.reset(line);
+        // check if input exists
+        if (args.count() == 0) {
+            session.out.println("Please try again!");
+            return true;
+        }
+        long start = System.nanoTime();
+        // determine which operation to perform
+        CommandRegistry.Entry command = COMMANDS.find(args);
+        if (command == null) {
+            session.out.println("Invalid operation name!");
+            // Unknown names are timed together so a typo doesn't get a metric of its own
+            Metrics.COMMAND_SECONDS.get("invalid").recordSince(start);
+            return true;
+        }
+        // slow statements are logged with the command they ran for
+        SlowQueryLog.setCommand(command.name());
+        try {
+            command.command().run(session, args);
+        } finally {
+            SlowQueryLog.setCommand(null);
+            Metrics.COMMAND_SECONDS.get(command.name()).recordSince(start);
+        }
+        return !session.ended;
+    }
+
+    static void createPatient(Session session, Tokenizer args) {
         // create_patient <user> <password>
         // check 1: if the statement user entered is valid with length 3 including operation name
-        if (tokens.length != 3) {
-            System.out.println("Create patient failed");
+        if (args.count() != 3) {
+            session.out.println("Create patient failed");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.string(1);
+        String password = args.string(2);
 
         if(!passwordCheck(password)){
-            System.out.println("Create patient failed, please use a strong password (8+ char, at least one upper and one lower, " +
+            session.out.println("Create patient failed, please use a strong password (8+ char, at least one upper and one lower, " +
                     "at least one letter and one number, and at least one special character, " +
                     "from \"!\", \"@\", \"#\", \"?\")");
             return;
         }
 
         // check 2: check if the username has been taken already
-        if(usernameExistsPatients(username)) {
-            System.out.println("Username taken, try again");
+        if(usernameExistsPatients(session, username)) {
+            session.out.println("Username taken, try again");
             return;
         }
 
@@ -127,9 +221,9 @@ public class Scheduler {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             // Save the patient information to our database
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            session.out.println("Created user " + username);
         } catch (SQLException e){
-            System.out.println("Create patient failed");
+            session.out.println("Create patient failed");
         }
     }
 
@@ -170,43 +264,42 @@ public class Scheduler {
     // Check if username for patients exist in database
     // False if there are no rows when using SQL statements to filter out rows with username
     // True if username already exists
-    private static boolean usernameExistsPatients(String username) {
+    private static boolean usernameExistsPatients(Session session, String username) {
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
+            PreparedStatement statement = cm.prepareStatement(PATIENT_EXISTS);
             statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+                return resultSet.isBeforeFirst();
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            session.out.println("Error occurred when checking username");
         } finally {
             cm.closeConnection();
         }
         return true;
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, Tokenizer args) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
+        if (args.count() != 3) {
             // Check if the statement user entered is valid or not with length 3
-            System.out.println("Failed to create user.");
+            session.out.println("Failed to create user.");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.string(1);
+        String password = args.string(2);
         // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+        if (usernameExistsCaregiver(session, username)) {
+            session.out.println("Username taken, try again!");
             return;
         }
 
         if(!passwordCheck(password)){
-            System.out.println("Create caregiver failed, please use a strong password (8+ char, at least one upper and one lower, " +
+            session.out.println("Create caregiver failed, please use a strong password (8+ char, at least one upper and one lower, " +
                     "at least one letter and one number, " +
                     "and at least one special character, from \"!\", \"@\", \"#\", \"?\")");
             return;
@@ -219,45 +312,44 @@ public class Scheduler {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            session.out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            session.out.println("Failed to create user.");
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
+    private static boolean usernameExistsCaregiver(Session session, String username) {
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
+            PreparedStatement statement = cm.prepareStatement(CAREGIVER_EXISTS);
             statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+                return resultSet.isBeforeFirst();
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            session.out.println("Error occurred when checking username");
         } finally {
             cm.closeConnection();
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    static void loginPatient(Session session, Tokenizer args) {
         // Check if there is an account that is logged in right now
-        if(currentPatient != null || currentCaregiver != null){
-            System.out.println("User already logged in, try again");
+        if(session.currentPatient != null || session.currentCaregiver != null){
+            session.out.println("User already logged in, try again");
             return;
         }
 
         // Check if the operation statement is valid
-        if(tokens.length != 3){
-            System.out.println("Login patient failed");
+        if(args.count() != 3){
+            session.out.println("Login patient failed");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.string(1);
+        String password = args.string(2);
 
         Patient patient = null;
 
@@ -266,380 +358,328 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e){
-            System.out.println("Login patient failed");
+            session.out.println("Login patient failed");
         }
 
         if(patient == null){
-            System.out.println("Login patient failed");
+            session.out.println("Login patient failed");
         } else {
-            System.out.println("Logged in as " + username);
-            currentPatient = patient;
+            session.out.println("Logged in as " + username);
+            session.currentPatient = patient;
         }
 
 
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    static void loginCaregiver(Session session, Tokenizer args) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.currentCaregiver != null || session.currentPatient != null) {
+            session.out.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+        if (args.count() != 3) {
+            session.out.println("Login failed.");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.string(1);
+        String password = args.string(2);
 
         Caregiver caregiver = null;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.out.println("Login failed.");
         }
 
         if (caregiver == null) {
             // check if login there is an account to log in in the database
-            System.out.println("Login failed.");
+            session.out.println("Login failed.");
         } else {
             // If yes, output this
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.out.println("Logged in as: " + username);
+            session.currentCaregiver = caregiver;
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    private static void searchCaregiverSchedule(Session session, Tokenizer args) {
         // Check 1: Make sure that someone is logged in
-        if(currentPatient == null && currentCaregiver == null){
-            System.out.println("Please login first");
+        if(session.currentPatient == null && session.currentCaregiver == null){
+            session.out.println("Please login first");
             return;
         }
-        // Check 2: If there are 2 tokens
-        if(tokens.length != 2){
-            System.out.println("Please try again");
+        // Check 2: If there are 2 tokens, or 3 for a range
+        if(args.count() != 2 && args.count() != 3){
+            session.out.println("Please try again");
             return;
         }
 
-        String date = tokens[1];
         try {
-            searchCaregiverScheduleMethod(date);
+            if (args.count() == 3) {
+                searchCaregiverScheduleRangeMethod(session, args.epochDay(1), args.epochDay(2));
+            } else {
+                searchCaregiverScheduleMethod(session, args.epochDay(1));
+            }
         } catch (IllegalArgumentException e) {
             // Check 3: If date input isn't valid
-            System.out.println("Please try again");
+            session.out.println("Please try again");
             return;
         } catch (SQLException e){
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         }
 
         try {
-            searchVaccineMethod();
+            searchVaccineMethod(session);
         } catch (SQLException e) {
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         }
 
     }
 
     // Output the username for the caregivers that are available for the date ordered by username of caregiver
-    private static void searchCaregiverScheduleMethod(String date) throws SQLException {
-        // Create a connection manager
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    static void searchCaregiverScheduleMethod(Session session, int day) throws SQLException {
+        // Answered from the in-memory availability index instead of querying Availabilities
+        List<String> caregivers = AvailabilityIndex.get().availableOn(day);
+        session.out.println("Caregivers: ");
+        if (caregivers.isEmpty()) {
+            session.out.println("No caregivers available");
+        } else {
+            for (String caregiver : caregivers) {
+                session.out.println(caregiver);
+            }
+        }
+    }
 
-        // Used to check if the date that the user inputted was correct - throw IllegalArgumentException if not correct
-        Date d = Date.valueOf(date);
+    // Output, for every day in [start, end], how many caregivers are available and the first one by username.
+    // Lines are written as the index is walked, nothing is collected first.
+    static void searchCaregiverScheduleRangeMethod(Session session, int start, int end) throws SQLException {
+        if (end < start || end - start >= Config.getInt("SearchMaxDays", 366)) {
+            throw new IllegalArgumentException("Invalid date range");
+        }
 
-        // Create the query
-        String searchSchedule = "SELECT a.Username FROM Availabilities AS a WHERE a.Time = ? ORDER BY a.Username;";
-        try {
-            // Place the input value in the parameter
-            PreparedStatement statement = con.prepareStatement(searchSchedule);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-            System.out.println("Caregivers: ");
-
-            if(resultSet.isBeforeFirst()){
-                while(resultSet.next()){
-                    System.out.println(resultSet.getString("Username"));
-                }
-            } else {
-                System.out.println("No caregivers available");
-            }
-        } catch (SQLException e){
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        AvailabilityIndex index = AvailabilityIndex.get();
+        session.out.println("Caregivers: ");
+        // Every day is a count and a bit scan in the index; days it doesn't know have nobody
+        for (int day = start; day <= end; day++) {
+            String caregiver = index.firstAvailable(day);
+            String date = EpochDay.toString(day);
+            session.out.println(caregiver == null ? date + " 0" : date + " " + index.count(day) + " " + caregiver);
         }
     }
 
     // Output the names of the vaccines and its number of doses
-    private static void searchVaccineMethod() throws SQLException {
-        // Create a connection manager
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String searchDoses = "SELECT v.Name, v.Doses FROM Vaccines AS v;";
-        try {
-            PreparedStatement statement = con.prepareStatement(searchDoses);
-            ResultSet resultSet = statement.executeQuery();
-
-            System.out.println("Vaccines: ");
-            // If no rows are returned, print that there isn't any vaccines available.
-            if(resultSet.isBeforeFirst()){
-                while(resultSet.next()){
-                    System.out.println(resultSet.getString("Name") + " " +
-                            resultSet.getString("Doses"));
-                }
-            } else {
-                System.out.println("No vaccines available");
+    private static void searchVaccineMethod(Session session) throws SQLException {
+        // Listed from the in-memory inventory snapshot, sorted by name
+        SortedMap<String, Integer> vaccines = VaccineInventory.get().snapshot();
+        session.out.println("Vaccines: ");
+        // If there are no vaccines, print that there isn't any vaccines available.
+        if (vaccines.isEmpty()) {
+            session.out.println("No vaccines available");
+        } else {
+            for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+                session.out.println(vaccine.getKey() + " " + vaccine.getValue());
             }
-        } catch (SQLException e){
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    private static void reserve(String[] tokens){
+    private static void reserve(Session session, Tokenizer args){
         // Only patients can perform this operation
-        if(currentPatient == null && currentCaregiver != null){
-            System.out.println("Please login as a patient");
+        if(session.currentPatient == null && session.currentCaregiver != null){
+            session.out.println("Please login as a patient");
             return;
         }
 
-        if(currentPatient == null && currentCaregiver == null){
-            System.out.println("Please login first");
+        if(session.currentPatient == null && session.currentCaregiver == null){
+            session.out.println("Please login first");
             return;
         }
 
-        if(tokens.length != 3){
-            System.out.println("Please try again");
+        if(args.count() != 3){
+            session.out.println("Please try again");
             return;
         }
 
-        String date = tokens[1];
-        String vaccine = tokens[2];
-
         try {
-            reserveMethod(date, vaccine);
+            reserveMethod(session, args.epochDay(1), args.string(2));
 
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         } catch (SQLException e){
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         }
 
     }
 
-    private static void reserveMethod(String date, String vaccine) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        Date d = Date.valueOf(date);
-
-        String caregiverQuery = "SELECT a.username FROM Availabilities AS a WHERE a.Time = ? ORDER BY a.Username LIMIT 1;";
-        String vaccineQuery = "SELECT v.Doses FROM Vaccines AS v WHERE v.Name = ?;";
-        String maxIDQuery = "SELECT MAX(appointment_id) FROM RESERVATIONS;";
-        String reservationQuery = "INSERT INTO Reservations VALUES (?,?,?,?,?)";
-        String availabilityQuery = "DELETE FROM Availabilities WHERE username = ? AND Time = ?;";
-        String caregiverCheck = "SELECT * FROM Reservations WHERE C_username = ? AND Time = ?;";
+    private static void reserveNext(Session session, Tokenizer args) {
+        // reserve_next <vaccine> [from-date]
+        if (session.currentPatient == null && session.currentCaregiver != null) {
+            session.out.println("Please login as a patient");
+            return;
+        }
+        if (session.currentPatient == null) {
+            session.out.println("Please login first");
+            return;
+        }
+        if (args.count() != 2 && args.count() != 3) {
+            session.out.println("Please try again");
+            return;
+        }
         try {
-            // Caregiver
-            PreparedStatement caregiverAvailable = con.prepareStatement(caregiverQuery);
-            caregiverAvailable.setDate(1, d);
-            ResultSet resultSet = caregiverAvailable.executeQuery();
-
-            // Vaccines
-            PreparedStatement vaccineDoses = con.prepareStatement(vaccineQuery);
-            vaccineDoses.setString(1, vaccine);
-            ResultSet vaccinesAvailable = vaccineDoses.executeQuery();
-
-            if(!resultSet.next()){
-                System.out.println("No caregiver is available");
-                return;
-
-            }
-
-            if(!vaccinesAvailable.next() || vaccinesAvailable.getInt("Doses") == 0){
-                System.out.println("Not enough available doses");
-                return;
-            }
-
-            String username = resultSet.getString("Username");
-
-
-            // Check if on that that day, there is a reservation with that caregiver name
-            PreparedStatement caregiverCheckQuery = con.prepareStatement(caregiverCheck);
-            caregiverCheckQuery.setString(1, username);
-            caregiverCheckQuery.setDate(2, d);
-            ResultSet checkResultSet = caregiverCheckQuery.executeQuery();
-
-            if(checkResultSet.isBeforeFirst()){
-                System.out.println("Please try again");
-                return;
-            }
-
-            PreparedStatement maxID = con.prepareStatement(maxIDQuery);
-            ResultSet resultSetID = maxID.executeQuery();
-            int appointmentID = 1;
-            if(resultSetID.next()){
-                appointmentID += resultSetID.getInt("MAX(appointment_id)");
-            }
-
-            // Add to reservation
-            PreparedStatement reservation = con.prepareStatement(reservationQuery);
-            reservation.setDate(1, d);
-            reservation.setString(2, username);
-            reservation.setString(3, currentPatient.getUsername());
-            reservation.setString(4, vaccine);
-            reservation.setInt(5, appointmentID);
-            reservation.executeUpdate();
-
-            // Remove availabilities
-            PreparedStatement removeAvailability = con.prepareStatement(availabilityQuery);
-            removeAvailability.setString(1, username);
-            removeAvailability.setDate(2, d);
-            removeAvailability.executeUpdate();
-
-            // Print out line
-            System.out.println("Appointment ID " + appointmentID + ", Caregiver username " +
-                    username);
-
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            int from = args.count() == 3 ? args.epochDay(2) : EpochDay.of(LocalDate.now());
+            reserveNextMethod(session, args.string(1), from);
+        } catch (IllegalArgumentException | SQLException e) {
+            session.out.println("Please try again");
         }
+    }
 
-        // Decrement vaccine doses
-        Vaccine v = new Vaccine.VaccineGetter(vaccine).get();
-        v.decreaseAvailableDoses(1);
+    // Book the earliest date at or after from with a free caregiver
+    static void reserveNextMethod(Session session, String vaccine, int from) throws SQLException {
+        try {
+            Reservation reservation = new Reservation.NextReservationBuilder(from, session.currentPatient.getUsername(),
+                    vaccine).reserve();
+            session.out.println("Appointment ID " + reservation.getAppointmentId() + ", Caregiver username " +
+                    reservation.getCaregiverUsername() + ", Date " + EpochDay.toString(reservation.getDay()));
+        } catch (IllegalStateException e) {
+            // No caregiver on any later date or no doses left
+            session.out.println(e.getMessage());
+        }
+    }
 
+    static void reserveMethod(Session session, int day, String vaccine) throws SQLException {
+        // The caregiver, the dose and the appointment id are claimed together in one transaction
+        try {
+            Reservation reservation = new Reservation.ReservationBuilder(day, session.currentPatient.getUsername(), vaccine)
+                    .reserve();
+            session.out.println("Appointment ID " + reservation.getAppointmentId() + ", Caregiver username " +
+                    reservation.getCaregiverUsername());
+        } catch (IllegalStateException e) {
+            // No caregiver or no doses left
+            session.out.println(e.getMessage());
+        }
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static void uploadAvailability(Session session, Tokenizer args) {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.currentCaregiver == null) {
+            session.out.println("Please login as a caregiver first!");
+            return;
+        }
+        // upload_availability <start> <end> [rule] covers a range in one go
+        if (args.count() == 3 || args.count() == 4) {
+            uploadAvailabilityRange(session, args);
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        if (args.count() != 2) {
+            session.out.println("Please try again!");
             return;
         }
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            session.currentCaregiver.uploadAvailability(args.epochDay(1));
+            session.out.println("Availability uploaded!");
+        } catch (IllegalArgumentException e) {
+            session.out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            session.out.println("Error occurred when uploading availability");
+        }
+    }
+
+    // Every date in [start, end] that matches the rule (see Recurrence), in one batched transaction.
+    // Dates the caregiver is already available or booked on are skipped.
+    private static void uploadAvailabilityRange(Session session, Tokenizer args) {
+        int[] days;
+        try {
+            int start = args.epochDay(1);
+            int end = args.epochDay(2);
+            if (end < start || end - start >= Config.getInt("UploadMaxDays", 366)) {
+                session.out.println("Please enter a valid date range!");
+                return;
+            }
+            days = Recurrence.parse(args.count() == 4 ? args.string(3) : null).expand(start, end);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.out.println("Please enter a valid date range!");
+            return;
+        }
+        if (days.length == 0) {
+            session.out.println("No dates in range");
+            return;
+        }
+        try {
+            boolean[] uploaded = session.currentCaregiver.uploadAvailability(days);
+            int count = 0;
+            for (boolean u : uploaded) {
+                if (u) {
+                    count++;
+                }
+            }
+            session.out.println("Availability uploaded for " + count + " of " + days.length + " dates!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            session.out.println("Error occurred when uploading availability");
         }
     }
 
-    private static void cancel(String[] tokens) {
+    private static void cancel(Session session, Tokenizer args) {
         // Both patients and caregivers can perform this operation
         // If the appointment id is valid
 
         // Check if a patient or a caregiver is logged in
-        if(currentPatient == null && currentCaregiver == null){
-            System.out.println("Please login first");
+        if(session.currentPatient == null && session.currentCaregiver == null){
+            session.out.println("Please login first");
             return;
         }
 
-        if(tokens.length != 2){
-            System.out.println("Please try again");
+        if(args.count() != 2){
+            session.out.println("Please try again");
             return;
         }
 
         try {
-            int id = Integer.parseInt(tokens[1]);
-            cancelMethod(id);
+            int id = args.parseInt(1);
+            cancelMethod(session, id);
         } catch (NumberFormatException | SQLException e) {
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         }
 
     }
 
-    private static void cancelMethod(int id) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String vaccineName = null;
-        String caregiverName = null;
-        Date date = null;
-        // Check if the id is on the reservations table
-        String idQuery = "SELECT * FROM Reservations WHERE appointment_id = ?;";
-        String removeReservation = "DELETE FROM Reservations WHERE appointment_id = ?;";
-        String updateCaregiver = "INSERT INTO Availabilities VALUES (?,?);";
-
-        try {
-            PreparedStatement idCheck = con.prepareStatement(idQuery);
-            idCheck.setInt(1, id);
-            ResultSet idResultSet = idCheck.executeQuery();
-
-            // If appointment id doesn't exist
-            if(!idResultSet.isBeforeFirst()){
-                System.out.println("Appointment ID " + id + " does not exist");
-                return;
-            }
-
-            // Get the vaccine name
-            vaccineName = idResultSet.getString("Vaccine_name");
-            // Get the caregiver name
-            caregiverName = idResultSet.getString("C_username");
-            // Get the date
-            date = idResultSet.getDate("Time");
-
-            // Update the availability of caregiver
-            PreparedStatement updateAvailability = con.prepareStatement(updateCaregiver);
-            updateAvailability.setDate(1, date);
-            updateAvailability.setString(2, caregiverName);
-            updateAvailability.executeUpdate();
-
-            // Remove the tuple from Reservations
-            PreparedStatement reservationRemove = con.prepareStatement(removeReservation);
-            reservationRemove.setInt(1, id);
-            reservationRemove.executeUpdate();
-
-            System.out.println("Appointment ID " + id + " has been successfully canceled");
-
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    static void cancelMethod(Session session, int id) throws SQLException {
+        // Removing the reservation, restoring the caregiver's availability and returning the dose
+        // happen in one transaction
+        Reservation reservation = new Reservation.ReservationGetter(id).cancel();
+        if (reservation == null) {
+            session.out.println("Appointment ID " + id + " does not exist");
+        } else {
+            session.out.println("Appointment ID " + id + " has been successfully canceled");
         }
-        // Update the availability of vaccine
-        Vaccine v = new Vaccine.VaccineGetter(vaccineName).get();
-        v.increaseAvailableDoses(1);
-
     }
 
-    private static void addDoses(String[] tokens) {
+    static void addDoses(Session session, Tokenizer args) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.currentCaregiver == null) {
+            session.out.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
+        if (args.count() != 3) {
+            session.out.println("Please try again!");
+            return;
+        }
+        String vaccineName = args.string(1);
+        int doses;
+        try {
+            doses = args.parseInt(2);
+        } catch (NumberFormatException e) {
+            session.out.println("Please enter a valid number: add_doses <vaccine> <number>");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
         Vaccine vaccine = null;
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            session.out.println("Error occurred when adding doses");
         }
         // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
         //          table
@@ -648,112 +688,143 @@ public class Scheduler {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.out.println("Error occurred when adding doses");
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.out.println("Error occurred when adding doses");
             }
         }
-        System.out.println("Doses updated!");
+        session.out.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
-        if(currentPatient == null && currentCaregiver == null){
-            System.out.println("Please login first");
+    private static void showAppointments(Session session, Tokenizer args) {
+        // show_appointments [after_id] [limit] [from=<date>] [to=<date>]
+        if(session.currentPatient == null && session.currentCaregiver == null){
+            session.out.println("Please login first");
             return;
         }
 
-        if(tokens.length != 1){
-            System.out.println("Please try again");
+        int afterId = 0;
+        int limit = Config.getInt("AppointmentPageSize", 100);
+        int from = NO_BOUND_FROM;
+        int to = NO_BOUND_TO;
+        int numbers = 0;
+        try {
+            for (int i = 1; i < args.count(); i++) {
+                if (args.startsWith(i, "from=")) {
+                    from = args.epochDay(i, "from=".length());
+                } else if (args.startsWith(i, "to=")) {
+                    to = args.epochDay(i, "to=".length());
+                } else if (numbers == 0) {
+                    afterId = args.parseInt(i);
+                    numbers++;
+                } else if (numbers == 1) {
+                    limit = args.parseInt(i);
+                    numbers++;
+                } else {
+                    throw new IllegalArgumentException("Too many arguments");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            session.out.println("Please try again");
+            return;
+        }
+        if (afterId < 0 || limit < 1) {
+            session.out.println("Please try again");
             return;
         }
 
         try {
-            showAppointmentsMethod();
+            showAppointmentsMethod(session, afterId, limit, from, to);
         } catch (SQLException e) {
-            System.out.println("Please try again");
+            session.out.println("Please try again");
         }
 
     }
 
-    private static void showAppointmentsMethod() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        // Write the queries for patients
-        String patientQuery = "SELECT r.appointment_id AS id, r.Vaccine_name AS vaccine, r.Time AS date, " +
-                "r.C_username AS caregiver FROM Reservations AS r WHERE r.P_username = ? ORDER BY r.appointment_id ASC;";
-        String caregiverQuery = "SELECT r.appointment_id AS id, r.Vaccine_name AS vaccine, r.Time AS date, " +
-                "r.P_username AS patient FROM Reservations AS r WHERE r.C_username = ? ORDER BY r.appointment_id ASC;";
-        if(currentPatient != null){
-            try {
-                PreparedStatement patientAppointments = con.prepareStatement(patientQuery);
-                patientAppointments.setString(1, currentPatient.getUsername());
-                ResultSet resultSet = patientAppointments.executeQuery();
+    static void showAppointmentsMethod(Session session) throws SQLException {
+        showAppointmentsMethod(session, 0, Config.getInt("AppointmentPageSize", 100), NO_BOUND_FROM, NO_BOUND_TO);
+    }
 
-                if(!resultSet.isBeforeFirst()){
-                    System.out.println("No appointments scheduled");
-                } else {
-                    while(resultSet.next()){
-                        int id = resultSet.getInt("id");
-                        String vaccine = resultSet.getString("vaccine");
-                        String date = resultSet.getDate("date").toString();
-                        String caregiver = resultSet.getString("caregiver");
-                        System.out.println(id + " " + vaccine + " " + date + " " + caregiver);
+    // One page of the user's appointments: those with an id above afterId, in id order, optionally
+    // only between two dates. Each row is written out as it is read. When there are more, the
+    // command for the next page is printed last.
+    static void showAppointmentsMethod(Session session, int afterId, int limit, int from, int to)
+            throws SQLException {
+        boolean patient = session.currentPatient != null;
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement appointments = cm.prepareStatement(patient ? PATIENT_APPOINTMENTS
+                    : CAREGIVER_APPOINTMENTS);
+            appointments.setString(1, patient ? session.currentPatient.getUsername()
+                    : session.currentCaregiver.getUsername());
+            appointments.setInt(2, afterId);
+            appointments.setInt(3, from);
+            appointments.setInt(4, to);
+            // One more than the page, to know whether there is a next one
+            appointments.setInt(5, limit + 1);
+            try (ResultSet resultSet = appointments.executeQuery()) {
+                int rows = 0;
+                int lastId = afterId;
+                while (resultSet.next()) {
+                    if (rows == limit) {
+                        session.out.print("More appointments: show_appointments ");
+                        session.out.print(lastId);
+                        session.out.print(' ');
+                        session.out.print(limit);
+                        if (from != NO_BOUND_FROM) {
+                            session.out.print(" from=");
+                            session.out.print(EpochDay.toString(from));
+                        }
+                        if (to != NO_BOUND_TO) {
+                            session.out.print(" to=");
+                            session.out.print(EpochDay.toString(to));
+                        }
+                        session.out.println();
+                        break;
                     }
+                    lastId = resultSet.getInt("id");
+                    // Written piece by piece, no line is built up per row
+                    session.out.print(lastId);
+                    session.out.print(' ');
+                    session.out.print(resultSet.getString("vaccine"));
+                    session.out.print(' ');
+                    session.out.print(EpochDay.toString(resultSet.getInt("day")));
+                    session.out.print(' ');
+                    session.out.println(resultSet.getString("other"));
+                    rows++;
                 }
-            } catch (SQLException e) {
-                throw new SQLException(e);
-            } finally {
-                cm.closeConnection();
-            }
-        } else {
-            try {
-                PreparedStatement caregiverAppointments = con.prepareStatement(caregiverQuery);
-                caregiverAppointments.setString(1, currentCaregiver.getUsername());
-                ResultSet resultSet = caregiverAppointments.executeQuery();
-
-                if(!resultSet.isBeforeFirst()){
-                    System.out.println("No appointments scheduled");
-                } else {
-                    while(resultSet.next()){
-                        int id = resultSet.getInt("id");
-                        String vaccine = resultSet.getString("vaccine");
-                        String date = resultSet.getDate("date").toString();
-                        String patient = resultSet.getString("patient");
-                        System.out.println(id + " " + vaccine + " " + date + " " + patient);
-                    }
+                if (rows == 0) {
+                    session.out.println(afterId == 0 ? "No appointments scheduled" : "No more appointments");
                 }
-            } catch (SQLException e) {
-                throw new SQLException(e);
-            } finally {
-                cm.closeConnection();
             }
+        } finally {
+            cm.closeConnection();
         }
     }
-    private static void logout(String[] tokens) {
+    static void logout(Session session, Tokenizer args) {
         // Other errors: "Please try again"
-        if(tokens.length != 1){
-            System.out.println("Please try again");
+        if(args.count() != 1){
+            session.out.println("Please try again");
             return;
         }
 
         // If not logged in, print "Please log in first"
-        if(currentCaregiver == null && currentPatient == null){
-            System.out.println("Please login first");
+        if(session.currentCaregiver == null && session.currentPatient == null){
+            session.out.println("Please login first");
             return;
         }
 
         // Otherwise, print "Successfully logged out"
-        if(currentCaregiver != null){
-            currentCaregiver = null;
+        if(session.currentCaregiver != null){
+            session.currentCaregiver = null;
         } else {
-            currentPatient = null;
+            session.currentPatient = null;
         }
-        System.out.println("Successfully logged out");
+        session.out.println("Successfully logged out");
     }
 }
@@ -0,0 +1,89 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves the scheduler over TCP, one session per connection, with the terminal's commands:
+//   java scheduler.SchedulerServer [port]
+public class SchedulerServer {
+
+    private static final AtomicInteger sessions = new AtomicInteger();
+    // Sessions open right now
+    private static final AtomicInteger active = new AtomicInteger();
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt("ServerPort", 7070);
+        String host = Config.getString("ServerHost", "127.0.0.1");
+        int backlog = Config.getInt("ServerBacklog", 128);
+        int maxSessions = Config.getInt("MaxSessions", 256);
+
+        if (!Scheduler.start()) {
+            return;
+        }
+        // quit only ends a session, the executor and the pool are closed when the process stops
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            CommandExecutor.shutdown();
+            ConnectionManager.shutdown();
+            Metrics.shutdown();
+        }, "scheduler-shutdown"));
+
+        try (ServerSocket server = new ServerSocket(port, backlog, InetAddress.getByName(host))) {
+            System.out.println("Scheduler listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                // Every session holds a reader thread, turn clients away rather than run out of them
+                if (active.incrementAndGet() > maxSessions) {
+                    active.decrementAndGet();
+                    reject(socket);
+                    continue;
+                }
+                // The connection's reader mostly waits for input, its commands run on the CommandExecutor
+                CommandExecutor.newThread("session-" + sessions.incrementAndGet(), () -> {
+                    try {
+                        serve(socket);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }).start();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not accept connections: " + e.getMessage());
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(connection.getOutputStream()), false,
+                    StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Session session = new Session(out);
+            Scheduler.printMenu(session);
+            Scheduler.serve(session, in);
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (Socket connection = socket) {
+            connection.getOutputStream().write("Too many sessions, please try again later\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+}
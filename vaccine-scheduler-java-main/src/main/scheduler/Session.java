@@ -0,0 +1,34 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.util.Tokenizer;
+
+import java.io.PrintStream;
+
+// State of one user of the scheduler: the terminal in the REPL, or one client connection
+// of SchedulerServer. Commands read the logged-in user from here and write their output here.
+// Commands of a session run one at a time, so its state needs no locking.
+public class Session {
+
+    // objects to keep track of the currently logged-in user
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in at a time in a session
+    Caregiver currentCaregiver = null;
+    Patient currentPatient = null;
+
+    final PrintStream out;
+
+    // Reset for every command line of the session, see Scheduler.execute
+    final Tokenizer args = new Tokenizer();
+
+    // Set by quit: the session takes no more commands
+    boolean ended = false;
+
+    // Commands waiting to run for this session, see CommandExecutor
+    final CommandExecutor.Lane lane = new CommandExecutor.Lane();
+
+    public Session(PrintStream out) {
+        this.out = out;
+    }
+}
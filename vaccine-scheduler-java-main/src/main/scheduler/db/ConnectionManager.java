@@ -1,39 +1,290 @@
 package scheduler.db;
 
+import scheduler.metrics.Counter;
+import scheduler.metrics.Gauge;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
-// Wrapper class for connecting to the database
+// Wrapper class for connecting to the database.
+// Connections come from a shared ConnectionPool: createConnection() borrows one
+// and closeConnection() hands it back instead of closing it. The connections are opened by the
+// configured Storage.
+// A ConnectionManager made with new is for reads; every write goes through inTransaction.
 public class ConnectionManager {
 
-    private final String driverName = "org.sqlite.JDBC";
-    private final String connectionUrl = "jdbc:sqlite:" + System.getenv("DBPath");
+    // SQLSTATE for a transaction that lost a race and should simply be run again
+    public static final String SERIALIZATION_FAILURE = "40001";
+
+    private static final int maxTransactionRetries = Config.getInt("TxMaxRetries", 8);
+    private static final long transactionBackoffMillis = Config.getLong("TxRetryBackoffMs", 2);
+
+    private static volatile ConnectionPool pool = null;
+    private static volatile ConnectionPool readPool = null;
+
+    private static final Histogram readAcquireTime = Metrics.DB_ACQUIRE_SECONDS.get("read");
+    private static final Histogram writeAcquireTime = Metrics.DB_ACQUIRE_SECONDS.get("write");
+    private static final Histogram commitTime = Metrics.DB_COMMIT_SECONDS.get();
+    private static final Counter acquireErrors = Metrics.DB_ERRORS.get("acquire");
+    private static final Counter transactionErrors = Metrics.DB_ERRORS.get("transaction");
+    private static final Counter retries = Metrics.TX_RETRIES.get();
 
+    static {
+        // Read-write pool as "write"; the read pool only exists with a single-writer Storage
+        poolGauges("write", () -> pool);
+        poolGauges("read", () -> readPool);
+    }
+
+    // Whether to borrow from the read pool or from the read-write one
+    private final boolean reads;
+    private PooledConnection pooled = null;
     private Connection con = null;
+    // Statements opened with the statement cache disabled, closed when the connection goes back to the pool
+    private final List<PreparedStatement> statements = new ArrayList<>();
 
     public ConnectionManager() {
+        this(true);
+    }
+
+    private ConnectionManager(boolean reads) {
+        this.reads = reads;
+    }
+
+    // The pool is created on first use and sized from the environment:
+    // PoolMinSize, PoolMaxSize, PoolIdleTimeoutMs, PoolMaxWaitMs and StatementCacheSize
+    public static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (ConnectionManager.class) {
+                p = pool;
+                if (p == null) {
+                    p = newPool(false, Config.getInt("PoolMaxSize", 8));
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    // Pool of the connections new ConnectionManagers read from: read-only connections sized by
+    // ReadPoolMaxSize for a single-writer Storage, otherwise the same pool as getPool()
+    public static ConnectionPool getReadPool() {
+        if (!Storage.get().singleWriter()) {
+            return getPool();
+        }
+        ConnectionPool p = readPool;
+        if (p == null) {
+            synchronized (ConnectionManager.class) {
+                p = readPool;
+                if (p == null) {
+                    p = newPool(true, Config.getInt("ReadPoolMaxSize", Config.getInt("PoolMaxSize", 8)));
+                    readPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    // The pool's counters as metrics, 0 while the pool isn't open
+    private static void poolGauges(String label, Supplier<ConnectionPool> current) {
+        gauge(Metrics.POOL_OPEN, label, current, ConnectionPool::getOpenCount);
+        gauge(Metrics.POOL_IDLE, label, current, ConnectionPool::getIdleCount);
+        gauge(Metrics.POOL_WAITS, label, current, ConnectionPool::getWaitCount);
+        gauge(Metrics.POOL_TIMEOUTS, label, current, ConnectionPool::getTimeoutCount);
+        gauge(Metrics.STATEMENT_CACHE_MISSES, label, current, ConnectionPool::getStatementCacheMisses);
+    }
+
+    private static void gauge(Metrics.Family<Gauge> family, String label,
+                              Supplier<ConnectionPool> current, ToLongFunction<ConnectionPool> stat) {
+        family.add(label, new Gauge(() -> {
+            ConnectionPool p = current.get();
+            return p == null ? 0 : stat.applyAsLong(p);
+        }));
+    }
+
+    private static ConnectionPool newPool(boolean readOnly, int maxSize) {
+        return new ConnectionPool(Storage.get(), readOnly,
+                Math.min(Config.getInt("PoolMinSize", 2), maxSize),
+                maxSize,
+                Config.getLong("PoolIdleTimeoutMs", 60_000),
+                Config.getLong("PoolMaxWaitMs", 5_000),
+                Config.getInt("StatementCacheSize", 32));
+    }
+
+    // Work that runs inside a single database transaction
+    public interface Transaction<T> {
+        T run(ConnectionManager cm) throws SQLException;
+    }
+
+    // Run the work as one transaction on a pooled connection and commit it.
+    // If the database is busy, or the work reports a lost race with SERIALIZATION_FAILURE,
+    // the transaction is rolled back and run again from the start, up to TxMaxRetries times
+    // with a short randomized backoff. Any other exception rolls back and is rethrown.
+    // With a single-writer Storage the work runs on the WriteQueue, with the same guarantees.
+    public static <T> T inTransaction(Transaction<T> work) throws SQLException {
+        if (Storage.get().singleWriter()) {
+            return WriteQueue.get().run(work);
+        }
+        return runTransaction(work);
+    }
+
+    static <T> T runTransaction(Transaction<T> work) throws SQLException {
+        for (int attempt = 0; ; attempt++) {
+            ConnectionManager cm = forWrites();
+            try {
+                Connection con = cm.createConnection();
+                if (con == null) {
+                    throw new SQLException("Could not get a database connection");
+                }
+                con.setAutoCommit(false);
+                T result = work.run(cm);
+                long commitStart = System.nanoTime();
+                con.commit();
+                commitTime.recordSince(commitStart);
+                return result;
+            } catch (SQLException e) {
+                transactionErrors.increment();
+                cm.rollbackQuietly();
+                if (!isRetryable(e) || attempt >= maxTransactionRetries) {
+                    throw e;
+                }
+                retries.increment();
+            } finally {
+                cm.closeConnection();
+            }
+            backoff(attempt);
+        }
+    }
+
+    // True for errors where running the same transaction again can succeed
+    public static boolean isRetryable(SQLException e) {
+        Storage storage = Storage.get();
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (!(t instanceof SQLException)) {
+                continue;
+            }
+            SQLException sqlException = (SQLException) t;
+            if (SERIALIZATION_FAILURE.equals(sqlException.getSQLState()) || storage.isRetryable(sqlException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void recordCommit(long start) {
+        commitTime.recordSince(start);
+    }
+
+    static void recordTransactionError(boolean retrying) {
+        transactionErrors.increment();
+        if (retrying) {
+            retries.increment();
+        }
+    }
+
+    static int maxTransactionRetries() {
+        return maxTransactionRetries;
+    }
+
+    // A manager that borrows from the read-write pool
+    static ConnectionManager forWrites() {
+        return new ConnectionManager(false);
+    }
+
+    static void backoff(int attempt) throws SQLException {
+        long ceiling = transactionBackoffMillis << Math.min(attempt, 6);
         try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying transaction", e);
         }
     }
 
+    // Close every pooled connection, used on shutdown
+    public static void shutdown() {
+        // Let queued writes finish before their connection goes away
+        WriteQueue.shutdown();
+        synchronized (ConnectionManager.class) {
+            if (pool != null) {
+                pool.close();
+                pool = null;
+            }
+            if (readPool != null) {
+                readPool.close();
+                readPool = null;
+            }
+        }
+        SlowQueryLog.shutdown();
+    }
+
     public Connection createConnection() {
+        if (pooled != null) {
+            return con;
+        }
+        long start = System.nanoTime();
         try {
-            con = DriverManager.getConnection(connectionUrl);
+            pooled = (reads ? getReadPool() : getPool()).borrow();
+            con = pooled.connection();
         } catch (SQLException e) {
+            acquireErrors.increment();
             e.printStackTrace();
         }
+        (reads ? readAcquireTime : writeAcquireTime).recordSince(start);
         return con;
     }
 
-    public void closeConnection() {
+    // Prepare a statement on the borrowed connection, borrowing one first if needed.
+    // Statements are cached per connection by SQL text: don't close them, close their ResultSets.
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (createConnection() == null) {
+            throw new SQLException("Could not get a database connection");
+        }
+        PreparedStatement statement = pooled.prepareStatement(sql);
+        if (!pooled.cachesStatements()) {
+            statements.add(statement);
+        }
+        return statement;
+    }
+
+    void rollbackQuietly() {
+        if (con == null) {
+            return;
+        }
         try {
-            this.con.close();
+            if (!con.getAutoCommit()) {
+                con.rollback();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    // Safe to call more than once, only the first call returns the connection to the pool
+    public void closeConnection() {
+        if (pooled == null) {
+            return;
+        }
+        for (PreparedStatement statement : statements) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        statements.clear();
+        PooledConnection pc = pooled;
+        pooled = null;
+        con = null;
+        (reads ? getReadPool() : getPool()).release(pc);
+    }
 }
@@ -0,0 +1,340 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded pool of long-lived JDBC connections, opened read-only or read-write by the Storage.
+// Connections are opened up front (minSize), grown on demand up to maxSize,
+// and idle connections above minSize are closed after idleTimeoutMillis.
+public class ConnectionPool {
+
+    private final Storage storage;
+    private final boolean readOnly;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long maxWaitNanos;
+    private final int statementCacheSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition returned = lock.newCondition();
+    // LIFO so the most recently used connections stay warm and the tail goes idle
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int open = 0;
+    private boolean closed = false;
+
+    private final ScheduledExecutorService evictor;
+
+    // Counters
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxObservedWaitNanos = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicLong statementEvictions = new AtomicLong();
+
+    public ConnectionPool(Storage storage, boolean readOnly, int minSize, int maxSize, long idleTimeoutMillis,
+                          long maxWaitMillis, int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.storage = storage;
+        this.readOnly = readOnly;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.statementCacheSize = statementCacheSize;
+
+        // Pre-warm the pool so the first commands don't pay for the connection setup
+        for (int i = 0; i < minSize; i++) {
+            try {
+                idle.push(openConnection());
+                open++;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+
+        if (idleTimeoutMillis > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "connection-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, idleTimeoutMillis / 2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    // Borrow a connection, waiting up to maxWaitMillis for one to be returned if the pool is at maxSize
+    PooledConnection borrow() throws SQLException {
+        borrowCount.incrementAndGet();
+        long start = System.nanoTime();
+        boolean waited = false;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                PooledConnection pc = idle.pollFirst();
+                if (pc != null) {
+                    if (pc.isUsable()) {
+                        recordWait(waited, start);
+                        return pc;
+                    }
+                    open--;
+                    pc.closeQuietly();
+                    continue;
+                }
+                if (open < maxSize) {
+                    // Reserve the slot, open outside the lock
+                    open++;
+                    break;
+                }
+                if (!waited) {
+                    waited = true;
+                    exhaustedCount.incrementAndGet();
+                }
+                long remaining = maxWaitNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    timeoutCount.incrementAndGet();
+                    recordWait(true, start);
+                    throw new SQLException("Connection pool exhausted: no connection available after "
+                            + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms");
+                }
+                try {
+                    returned.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            PooledConnection pc = openConnection();
+            recordWait(waited, start);
+            return pc;
+        } catch (SQLException e) {
+            lock.lock();
+            try {
+                open--;
+                returned.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    // Give a borrowed connection back; broken connections are dropped instead of pooled
+    void release(PooledConnection pc) {
+        boolean reusable;
+        try {
+            pc.reset();
+            reusable = pc.isUsable();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        lock.lock();
+        try {
+            if (reusable && !closed) {
+                idle.push(pc);
+            } else {
+                open--;
+                pc.closeQuietly();
+            }
+            returned.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Close connections that sat idle longer than the timeout, never going below minSize
+    void evictIdle() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && open > minSize) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastReturnedNanos() < idleTimeoutNanos) {
+                    // Older connections are at the tail, everything after this one is newer
+                    break;
+                }
+                it.remove();
+                open--;
+                evictedCount.incrementAndGet();
+                pc.closeQuietly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (PooledConnection pc : idle) {
+                pc.closeQuietly();
+                open--;
+            }
+            idle.clear();
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        PooledConnection pc = new PooledConnection(storage.connect(readOnly),
+                statementCacheSize, this);
+        createdCount.incrementAndGet();
+        return pc;
+    }
+
+    void recordStatementHit() {
+        statementHits.incrementAndGet();
+    }
+
+    void recordStatementMiss() {
+        statementMisses.incrementAndGet();
+    }
+
+    void recordStatementEviction() {
+        statementEvictions.incrementAndGet();
+    }
+
+    private void recordWait(boolean waited, long start) {
+        if (!waited) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(elapsed);
+        maxObservedWaitNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    // Getters for the pool counters
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenCount() {
+        lock.lock();
+        try {
+            return open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    // Number of borrows that had to wait for a connection
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxObservedWaitNanos.get();
+    }
+
+    // Number of borrows that found the pool at maxSize with nothing idle
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    // Number of borrows that gave up after maxWaitMillis
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    public long getStatementCacheEvictions() {
+        return statementEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{" +
+                "open=" + getOpenCount() +
+                ", idle=" + getIdleCount() +
+                ", min=" + minSize +
+                ", max=" + maxSize +
+                ", borrows=" + getBorrowCount() +
+                ", waits=" + getWaitCount() +
+                ", totalWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getTotalWaitNanos()) +
+                ", maxWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getMaxWaitNanos()) +
+                ", exhausted=" + getExhaustedCount() +
+                ", timeouts=" + getTimeoutCount() +
+                ", created=" + getCreatedCount() +
+                ", evicted=" + getEvictedCount() +
+                ", statementHits=" + getStatementCacheHits() +
+                ", statementMisses=" + getStatementCacheMisses() +
+                ", statementEvictions=" + getStatementCacheEvictions() +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Hands out unique ids from a named sequence of the Storage, reserved in blocks
+public class IdAllocator {
+
+    private final String name;
+    private final String seedQuery;
+    private final int blockSize;
+
+    // The current block, handed out from position on
+    private int[] block = new int[0];
+    private int position = 0;
+    // Ids given back unused, handed out again before the block
+    private final Deque<Integer> returned = new ArrayDeque<>();
+
+    // seedQuery returns the first id to hand out when the sequence doesn't exist yet,
+    // e.g. one past the largest id already in use
+    public IdAllocator(String name, String seedQuery, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.name = name;
+        this.seedQuery = seedQuery;
+        this.blockSize = blockSize;
+    }
+
+    // Must not be called from inside another transaction: a refill commits on its own
+    // connection, and only a committed block may be handed out.
+    public synchronized int next() throws SQLException {
+        if (!returned.isEmpty()) {
+            return returned.pop();
+        }
+        if (position >= block.length) {
+            block = Storage.get().reserveIds(name, seedQuery, blockSize);
+            position = 0;
+        }
+        return block[position++];
+    }
+
+    // An id from next() that ended up unused, e.g. its booking rolled back
+    public synchronized void giveBack(int id) {
+        returned.push(id);
+    }
+}
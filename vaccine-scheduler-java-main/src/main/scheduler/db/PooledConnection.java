@@ -0,0 +1,62 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// A physical connection owned by the ConnectionPool, lent out to one ConnectionManager at a time
+class PooledConnection {
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private long lastReturnedNanos;
+
+    // The driver's connection is wrapped in a TracedConnection, borrowers only see the wrapper
+    PooledConnection(Connection connection, int statementCacheSize, ConnectionPool pool) {
+        this.connection = TracedConnection.wrap(connection);
+        this.statementCache = new StatementCache(this.connection, statementCacheSize, pool);
+        this.lastReturnedNanos = System.nanoTime();
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    // Cached statements stay open between borrowers, callers must not close them
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        return statementCache.prepare(sql);
+    }
+
+    boolean cachesStatements() {
+        return statementCache.isEnabled();
+    }
+
+    long lastReturnedNanos() {
+        return lastReturnedNanos;
+    }
+
+    boolean isUsable() {
+        try {
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Undo anything a borrower left behind so the next borrower starts clean
+    void reset() throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+        lastReturnedNanos = System.nanoTime();
+    }
+
+    void closeQuietly() {
+        statementCache.closeAll();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
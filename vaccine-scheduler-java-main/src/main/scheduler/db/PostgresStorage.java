@@ -0,0 +1,141 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+// A PostgreSQL or Aurora PostgreSQL database, created from resources/aurora/aurora-create.sql.
+public class PostgresStorage extends Storage {
+
+    private static final String driverName = "org.postgresql.Driver";
+
+    private static final String SERIALIZATION_FAILURE = "40001";
+    private static final String DEADLOCK_DETECTED = "40P01";
+
+    // Migrations are append-only: never edit one that has shipped, add a new one instead
+    private static final String[][] MIGRATIONS = {
+            // 1: high-water marks, unused here (see 4) but kept so the versions match SQLite's
+            {
+                    "CREATE TABLE IF NOT EXISTS Sequences (Name varchar(255), Next_value int NOT NULL, " +
+                            "PRIMARY KEY (Name))"
+            },
+            // 2: secondary indexes for the Scheduler queries, the same as SQLite's
+            {
+                    "CREATE INDEX IF NOT EXISTS Reservations_patient ON Reservations " +
+                            "(P_username, appointment_id, Time, Vaccine_name, C_username)",
+                    "CREATE INDEX IF NOT EXISTS Reservations_caregiver ON Reservations " +
+                            "(C_username, appointment_id, Time, Vaccine_name, P_username)",
+                    "CREATE INDEX IF NOT EXISTS Reservations_caregiver_time ON Reservations (C_username, Time)"
+            },
+            // 3: hash parameters per account (PasswordHasher), NULL for hashes made before this column
+            {
+                    "ALTER TABLE Patients ADD COLUMN IF NOT EXISTS Kdf varchar(64)",
+                    "ALTER TABLE Caregivers ADD COLUMN IF NOT EXISTS Kdf varchar(64)"
+            },
+            // 4: appointment ids, starting after the ones already in use
+            {
+                    "CREATE SEQUENCE IF NOT EXISTS appointment_id_seq",
+                    "SELECT setval('appointment_id_seq', COALESCE(MAX(appointment_id), 0) + 1, false) " +
+                            "FROM Reservations"
+            },
+            // 5: dates as integer epoch days (scheduler.util.EpochDay) in a Day column, as on SQLite.
+            // Changing the type rewrites the tables and rebuilds their indexes.
+            {
+                    "ALTER TABLE Availabilities ALTER COLUMN Time TYPE int USING Time - DATE '1970-01-01'",
+                    "ALTER TABLE Availabilities RENAME COLUMN Time TO Day",
+                    "ALTER TABLE Reservations ALTER COLUMN Time TYPE int USING Time - DATE '1970-01-01'",
+                    "ALTER TABLE Reservations RENAME COLUMN Time TO Day",
+                    "ALTER TABLE Reservations ALTER COLUMN Day SET NOT NULL",
+                    "ALTER INDEX IF EXISTS Reservations_caregiver_time RENAME TO Reservations_caregiver_day"
+            },
+    };
+
+    private final String connectionUrl;
+    private final Properties properties = new Properties();
+
+    public PostgresStorage(String endpoint, int port, String database, String username, String password) {
+        loadDriver(driverName);
+        this.connectionUrl = "jdbc:postgresql://" + endpoint + ":" + port + "/" + database;
+        if (username != null) {
+            properties.setProperty("user", username);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "postgresql";
+    }
+
+    // SERIALIZABLE, so a booking and an upload for the same caregiver and day can't both commit
+    @Override
+    Connection connect(boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(connectionUrl, properties);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connection.setReadOnly(readOnly);
+        return connection;
+    }
+
+    // The transaction that lost a serialization conflict or a deadlock
+    @Override
+    boolean isRetryable(SQLException e) {
+        String state = e.getSQLState();
+        return SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state);
+    }
+
+    @Override
+    String[][] migrations() {
+        return MIGRATIONS;
+    }
+
+    @Override
+    int schemaVersion(ConnectionManager cm) throws SQLException {
+        // Locks the row, so a second migrator waits for the first one's commit and then retries
+        try (ResultSet resultSet = cm.prepareStatement("SELECT Version FROM Schema_version FOR UPDATE")
+                .executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    void setSchemaVersion(ConnectionManager cm, int version) throws SQLException {
+        PreparedStatement statement = cm.prepareStatement("UPDATE Schema_version SET Version = ?");
+        statement.setInt(1, version);
+        statement.executeUpdate();
+    }
+
+    // Concurrent bookings for the same day take different caregivers instead of queueing on one row
+    @Override
+    public String lockForClaim(String query) {
+        return query + " FOR UPDATE SKIP LOCKED";
+    }
+
+    // From the sequence <name>_seq, created by a migration. Ids of concurrent callers interleave,
+    // so a block is unique but not necessarily contiguous.
+    @Override
+    int[] reserveIds(String name, String seedQuery, int count) throws SQLException {
+        if (!name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid sequence name: " + name);
+        }
+        int[] ids = new int[count];
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement("SELECT nextval('" + name + "_seq') " +
+                    "FROM generate_series(1, ?)");
+            statement.setInt(1, count);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                for (int i = 0; i < count && resultSet.next(); i++) {
+                    ids[i] = resultSet.getInt(1);
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,126 @@
+package scheduler.db;
+
+import scheduler.Scheduler;
+import scheduler.model.Caregiver;
+import scheduler.model.Reservation;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs EXPLAIN QUERY PLAN on every hot query (SQLite only), e.g. java -DDBPath=/tmp/plan.db scheduler.db.QueryPlanCheck
+public class QueryPlanCheck {
+
+    // A hot query and the indexes its plan is expected to use, by name or as PRIMARY KEY or INTEGER PRIMARY KEY
+    static final class HotQuery {
+        final String sql;
+        final String[] indexes;
+
+        HotQuery(String sql, String... indexes) {
+            this.sql = sql;
+            this.indexes = indexes;
+        }
+    }
+
+    // Queries that run on every booking or lookup; listing all vaccines is a deliberate scan
+    static Map<String, HotQuery> hotQueries() {
+        Map<String, HotQuery> queries = new LinkedHashMap<>();
+        queries.put("patient exists", new HotQuery(Scheduler.PATIENT_EXISTS, "sqlite_autoindex_Patients_1"));
+        queries.put("caregiver exists", new HotQuery(Scheduler.CAREGIVER_EXISTS, "sqlite_autoindex_Caregivers_1"));
+        queries.put("patient appointments", new HotQuery(Scheduler.PATIENT_APPOINTMENTS, "Reservations_patient"));
+        queries.put("caregiver appointments", new HotQuery(Scheduler.CAREGIVER_APPOINTMENTS,
+                "Reservations_caregiver"));
+        queries.put("upload availability", new HotQuery(Caregiver.UPLOAD_AVAILABILITY,
+                "Reservations_caregiver_day"));
+        queries.put("first free caregiver", new HotQuery(Reservation.FIRST_FREE_CAREGIVER,
+                "PRIMARY KEY", "Reservations_caregiver_day"));
+        queries.put("take dose", new HotQuery(Reservation.TAKE_DOSE, "sqlite_autoindex_Vaccines_1"));
+        queries.put("return dose", new HotQuery(Reservation.RETURN_DOSE, "sqlite_autoindex_Vaccines_1"));
+        queries.put("claim availability", new HotQuery(Reservation.CLAIM_AVAILABILITY, "PRIMARY KEY"));
+        queries.put("first free day", new HotQuery(Reservation.FIRST_FREE_DAY, "PRIMARY KEY",
+                "Reservations_caregiver_day"));
+        queries.put("reservation by id", new HotQuery(Reservation.SELECT_BY_ID, "INTEGER PRIMARY KEY"));
+        queries.put("delete reservation", new HotQuery(Reservation.DELETE_BY_ID, "INTEGER PRIMARY KEY"));
+        return queries;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (!(Storage.get() instanceof SqliteStorage)) {
+            System.out.println("QueryPlanCheck reads SQLite query plans, run it with Storage=sqlite");
+            System.exit(2);
+        }
+        SchemaMigrator.migrate();
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, HotQuery> query : hotQueries().entrySet()) {
+            List<String> plan = explain(query.getValue().sql);
+            System.out.println(query.getKey() + ":");
+            for (String step : plan) {
+                System.out.println("    " + step);
+                if (isFullScan(step)) {
+                    failures.add(query.getKey() + " -> " + step);
+                }
+            }
+            for (String index : missingIndexes(query.getValue(), plan)) {
+                failures.add(query.getKey() + " -> does not use " + index);
+            }
+        }
+        ConnectionManager.shutdown();
+
+        if (!failures.isEmpty()) {
+            System.out.println();
+            System.out.println("Full table scans or missing indexes found:");
+            for (String failure : failures) {
+                System.out.println("    " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println();
+        System.out.println("All " + hotQueries().size() + " hot queries use an index");
+    }
+
+    // Plan steps look like "SEARCH a USING COVERING INDEX ..." or "SCAN r".
+    // A SCAN of a table, or of a whole index, reads every row.
+    static boolean isFullScan(String step) {
+        return step.startsWith("SCAN ") && !step.startsWith("SCAN CONSTANT ROW");
+    }
+
+    // The expected indexes that no step of the plan uses
+    static List<String> missingIndexes(HotQuery query, List<String> plan) {
+        List<String> missing = new ArrayList<>();
+        for (String index : query.indexes) {
+            boolean used = false;
+            for (String step : plan) {
+                used |= step.contains("INDEX " + index + " (") || step.contains("USING " + index + " (");
+            }
+            if (!used) {
+                missing.add(index);
+            }
+        }
+        return missing;
+    }
+
+    static List<String> explain(String sql) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+            int parameters = statement.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameters; i++) {
+                statement.setNull(i, Types.NULL);
+            }
+            List<String> plan = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.add(resultSet.getString("detail"));
+                }
+            }
+            return plan;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+// Brings a database created from the base schema of its Storage up to the schema the code expects.
+public class SchemaMigrator {
+
+    private SchemaMigrator() {
+    }
+
+    // Apply every migration newer than the database's version, each in one transaction with its
+    // version bump. Returns the resulting version.
+    public static int migrate() throws SQLException {
+        Storage storage = Storage.get();
+        String[][] migrations = storage.migrations();
+        int version = currentVersion();
+        while (version < migrations.length) {
+            final int target = version + 1;
+            version = ConnectionManager.inTransaction(cm -> {
+                // Someone else may have migrated while we waited for the write lock
+                int current = storage.schemaVersion(cm);
+                if (current >= target) {
+                    return current;
+                }
+                for (String statement : migrations[target - 1]) {
+                    cm.prepareStatement(statement).execute();
+                }
+                storage.setSchemaVersion(cm, target);
+                return target;
+            });
+        }
+        return version;
+    }
+
+    public static int currentVersion() throws SQLException {
+        return ConnectionManager.inTransaction(cm -> Storage.get().schemaVersion(cm));
+    }
+}
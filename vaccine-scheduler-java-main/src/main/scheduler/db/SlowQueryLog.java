@@ -0,0 +1,261 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Statements and commits that took at least SlowQueryMs, appended by a background thread as one JSON
+// object per line to SlowQueryLog (default: next to DBPath).
+public class SlowQueryLog {
+
+    private static final long thresholdNanos = thresholdNanos(Config.getLong("SlowQueryMs", 100));
+    private static final ThreadLocal<String> command = new ThreadLocal<>();
+    private static final Counter dropped = Metrics.SLOW_QUERIES_DROPPED.get();
+
+    private static volatile SlowQueryLog instance = null;
+
+    private final Path path;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private static final class Entry {
+        private final long timeMillis = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final String command = SlowQueryLog.command.get();
+        private final long elapsedNanos;
+        private final String sql;
+        private final Object[] params;
+        private final int batch;
+        private final long rows;
+
+        Entry(long elapsedNanos, String sql, Object[] params, int batch, long rows) {
+            this.elapsedNanos = elapsedNanos;
+            this.sql = sql;
+            this.params = params;
+            this.batch = batch;
+            this.rows = rows;
+        }
+    }
+
+    private SlowQueryLog(Path path, int queueSize) {
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.writer = new Thread(this::write, "slow-query-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static long thresholdNanos(long millis) {
+        return millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static SlowQueryLog get() {
+        SlowQueryLog log = instance;
+        if (log == null) {
+            synchronized (SlowQueryLog.class) {
+                log = instance;
+                if (log == null) {
+                    String defaultPath = Config.getString("DBPath", "scheduler.db") + ".slow.jsonl";
+                    log = new SlowQueryLog(Paths.get(Config.getString("SlowQueryLog", defaultPath)),
+                            Config.getInt("SlowQueryQueueSize", 1024));
+                    instance = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    // The command statements on this thread run for, null when not running one
+    public static void setCommand(String name) {
+        if (name == null) {
+            command.remove();
+        } else {
+            command.set(name);
+        }
+    }
+
+    public static String command() {
+        return command.get();
+    }
+
+    // False when SlowQueryMs is negative; statements then skip collecting what the log would need
+    static boolean enabled() {
+        return thresholdNanos >= 0;
+    }
+
+    static boolean isSlow(long elapsedNanos) {
+        return thresholdNanos >= 0 && elapsedNanos >= thresholdNanos;
+    }
+
+    // Queue an entry if the statement was slow. params is kept, pass a copy. rows is -1 when unknown.
+    static void record(long elapsedNanos, String sql, Object[] params, int batch, long rows) {
+        if (!isSlow(elapsedNanos)) {
+            return;
+        }
+        if (!get().queue.offer(new Entry(elapsedNanos, sql, params, batch, rows))) {
+            dropped.increment();
+        }
+    }
+
+    // Write out what is queued and stop the writer
+    static void shutdown() {
+        SlowQueryLog log;
+        synchronized (SlowQueryLog.class) {
+            log = instance;
+            instance = null;
+        }
+        if (log != null) {
+            log.closed = true;
+            try {
+                log.writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The file is opened on the first entry, so a run without slow statements leaves nothing behind
+    private void write() {
+        BufferedWriter out = null;
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder line = new StringBuilder(512);
+        try {
+            while (true) {
+                boolean closing = closed;
+                Entry first;
+                try {
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first == null) {
+                    // Once closed, stop when everything queued before is written
+                    if (closing) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                try {
+                    if (out == null) {
+                        out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    }
+                    for (Entry entry : batch) {
+                        line.setLength(0);
+                        format(entry, line);
+                        out.append(line).append('\n');
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    System.out.println("Could not write the slow query log " + path + ": " + e.getMessage());
+                    dropped.add(batch.size());
+                }
+                batch.clear();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder out) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.timeMillis)).append('"');
+        out.append(",\"elapsed_ms\":").append(Math.round(entry.elapsedNanos / 1e3) / 1000.0);
+        out.append(",\"command\":");
+        string(entry.command, out);
+        out.append(",\"thread\":");
+        string(entry.thread, out);
+        out.append(",\"sql\":");
+        string(entry.sql, out);
+        if (entry.params != null) {
+            out.append(",\"params\":[");
+            for (int i = 0; i < entry.params.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                value(entry.params[i], out);
+            }
+            out.append(']');
+        }
+        if (entry.batch > 0) {
+            out.append(",\"batch\":").append(entry.batch);
+        }
+        if (entry.rows >= 0) {
+            out.append(",\"rows\":").append(entry.rows);
+        }
+        out.append('}');
+    }
+
+    private static void value(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof byte[]) {
+            // Salts and hashes: never write them out
+            out.append("\"<").append(((byte[]) value).length).append(" bytes>\"");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof CharSequence || value instanceof java.util.Date) {
+            string(value.toString(), out);
+        } else {
+            // Streams, blobs and the like
+            string("<" + value.getClass().getSimpleName() + ">", out);
+        }
+    }
+
+    private static void string(String value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
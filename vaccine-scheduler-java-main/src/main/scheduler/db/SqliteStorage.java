@@ -0,0 +1,169 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// A SQLite database file at DBPath, created from resources/sqlite/create.sql, with its pragmas from the
+// Sqlite* settings.
+public class SqliteStorage extends Storage {
+
+    private static final String driverName = "org.sqlite.JDBC";
+
+    // SQLite result codes for a database file locked by another connection
+    private static final int SQLITE_BUSY = 5;
+    private static final int SQLITE_LOCKED = 6;
+
+    // Migrations are append-only: never edit one that has shipped, add a new one instead
+    private static final String[][] MIGRATIONS = {
+            // 1: high-water marks for IdAllocator
+            {
+                    "CREATE TABLE IF NOT EXISTS Sequences (Name varchar(255), Next_value int NOT NULL, " +
+                            "PRIMARY KEY (Name))"
+            },
+            // 2: secondary indexes for the Scheduler queries.
+            // Availabilities lookups by Time use the (Time, Username) primary key, and
+            // Reservations lookups by appointment_id use its primary key.
+            {
+                    // show_appointments for a patient, covering so the rows come straight from the index
+                    "CREATE INDEX IF NOT EXISTS Reservations_patient ON Reservations " +
+                            "(P_username, appointment_id, Time, Vaccine_name, C_username)",
+                    // show_appointments for a caregiver
+                    "CREATE INDEX IF NOT EXISTS Reservations_caregiver ON Reservations " +
+                            "(C_username, appointment_id, Time, Vaccine_name, P_username)",
+                    // is this caregiver already booked on this day
+                    "CREATE INDEX IF NOT EXISTS Reservations_caregiver_time ON Reservations (C_username, Time)"
+            },
+            // 3: hash parameters per account (PasswordHasher), NULL for hashes made before this column
+            {
+                    "ALTER TABLE Patients ADD COLUMN Kdf varchar(64)",
+                    "ALTER TABLE Caregivers ADD COLUMN Kdf varchar(64)"
+            },
+            // 4: dates as INTEGER epoch days (scheduler.util.EpochDay) in a Day column. SQLite can't
+            // change a column's type, so both tables are rebuilt and their indexes made again.
+            // Availabilities keys on (Day, Username) alone, without a rowid, and appointment_id
+            // becomes the rowid of Reservations, so neither needs a separate primary key index.
+            {
+                    "CREATE TABLE Availabilities_days (Day INTEGER NOT NULL, Username varchar(255) NOT NULL, " +
+                            "FOREIGN KEY (Username) REFERENCES Caregivers(Username) ON DELETE CASCADE, " +
+                            "PRIMARY KEY (Day, Username)) WITHOUT ROWID",
+                    // The same day stored two ways would collide once converted
+                    "INSERT OR IGNORE INTO Availabilities_days SELECT " + epochDay("Time") + ", Username " +
+                            "FROM Availabilities",
+                    "DROP TABLE Availabilities",
+                    "ALTER TABLE Availabilities_days RENAME TO Availabilities",
+                    "CREATE TABLE Reservations_days (Day INTEGER NOT NULL, C_username varchar(255) NOT NULL, " +
+                            "P_username varchar(255) NOT NULL, Vaccine_name varchar(255) NOT NULL, " +
+                            "appointment_id INTEGER PRIMARY KEY, " +
+                            "FOREIGN KEY (C_username) REFERENCES Caregivers(Username) ON DELETE CASCADE, " +
+                            "FOREIGN KEY (P_username) REFERENCES Patients(Username) ON DELETE CASCADE, " +
+                            "FOREIGN KEY (Vaccine_name) REFERENCES Vaccines(Name) ON DELETE CASCADE)",
+                    "INSERT INTO Reservations_days SELECT " + epochDay("Time") + ", C_username, P_username, " +
+                            "Vaccine_name, appointment_id FROM Reservations",
+                    "DROP TABLE Reservations",
+                    "ALTER TABLE Reservations_days RENAME TO Reservations",
+                    "CREATE INDEX Reservations_patient ON Reservations " +
+                            "(P_username, appointment_id, Day, Vaccine_name, C_username)",
+                    "CREATE INDEX Reservations_caregiver ON Reservations " +
+                            "(C_username, appointment_id, Day, Vaccine_name, P_username)",
+                    "CREATE INDEX Reservations_caregiver_day ON Reservations (C_username, Day)"
+            },
+    };
+
+    // The epoch day of a date column as the driver stored it: java.sql.Date is kept as the
+    // milliseconds of the writer's local midnight. Shifted 13 hours, that lands on the right day for
+    // UTC offsets from -10 to +13 (floored, for days before 1970). Dates written as text by other tools
+    // go through julianday.
+    private static String epochDay(String column) {
+        return "CASE typeof(" + column + ") WHEN 'integer' THEN (" + column + " + 46800000 - " +
+                "CASE WHEN " + column + " < -46800000 THEN 86399999 ELSE 0 END) / 86400000 " +
+                "ELSE CAST(julianday(" + column + ") - 2440587.5 AS INTEGER) END";
+    }
+
+    private final String connectionUrl;
+    private final String journalMode = pragmaValue("SqliteJournalMode", "WAL");
+    private final String synchronous = pragmaValue("SqliteSynchronous", "FULL");
+    private final long busyTimeoutMillis = Config.getLong("SqliteBusyTimeoutMs", 5_000);
+    private final long cacheSizeKb = Config.getLong("SqliteCacheSizeKb", 16_384);
+    private final long mmapSize = Config.getLong("SqliteMmapSize", 256L << 20);
+
+    public SqliteStorage(String path) {
+        loadDriver(driverName);
+        this.connectionUrl = "jdbc:sqlite:" + path;
+    }
+
+    // Pragma values are keywords that end up in the statement, refuse anything else
+    private static String pragmaValue(String name, String defaultValue) {
+        String value = Config.getString(name, defaultValue);
+        if (!value.matches("[A-Za-z]+")) {
+            throw new IllegalArgumentException(name + " must be a keyword, got " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public String name() {
+        return "sqlite";
+    }
+
+    @Override
+    Connection connect(boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(connectionUrl);
+        try (Statement statement = connection.createStatement()) {
+            // First, so switching the journal mode waits for other processes instead of failing
+            statement.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+            if (!readOnly) {
+                // Kept in the file, readers pick it up from there
+                statement.execute("PRAGMA journal_mode = " + journalMode);
+            }
+            statement.execute("PRAGMA synchronous = " + synchronous);
+            // Negative means KiB instead of pages
+            statement.execute("PRAGMA cache_size = " + -cacheSizeKb);
+            statement.execute("PRAGMA mmap_size = " + mmapSize);
+            if (readOnly) {
+                statement.execute("PRAGMA query_only = 1");
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean singleWriter() {
+        return true;
+    }
+
+    @Override
+    boolean isRetryable(SQLException e) {
+        // SQLite reports extended result codes, the primary code is the low byte
+        int code = e.getErrorCode() & 0xff;
+        if (code == SQLITE_BUSY || code == SQLITE_LOCKED) {
+            return true;
+        }
+        String message = e.getMessage();
+        return message != null && (message.contains("SQLITE_BUSY") || message.contains("database is locked"));
+    }
+
+    @Override
+    String[][] migrations() {
+        return MIGRATIONS;
+    }
+
+    @Override
+    int schemaVersion(ConnectionManager cm) throws SQLException {
+        try (ResultSet resultSet = cm.prepareStatement("PRAGMA user_version").executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    void setSchemaVersion(ConnectionManager cm, int version) throws SQLException {
+        cm.prepareStatement("PRAGMA user_version = " + version).executeUpdate();
+    }
+}
@@ -0,0 +1,92 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU cache of prepared statements keyed by SQL text, owned by a single pooled connection.
+// Only the borrower of the connection touches it, so it needs no locking of its own.
+class StatementCache {
+    private static final Histogram hitTime = Metrics.DB_PREPARE_SECONDS.get("hit");
+    private static final Histogram missTime = Metrics.DB_PREPARE_SECONDS.get("miss");
+    private static final Counter prepareErrors = Metrics.DB_ERRORS.get("prepare");
+
+    private final Connection connection;
+    private final int maxSize;
+    private final ConnectionPool pool;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(Connection connection, int maxSize, ConnectionPool pool) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.pool = pool;
+        // access order, so iteration starts at the least recently used statement
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            pool.recordStatementHit();
+            statement.clearParameters();
+            hitTime.recordSince(start);
+            return statement;
+        }
+        pool.recordStatementMiss();
+        try {
+            statement = connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            prepareErrors.increment();
+            throw e;
+        }
+        missTime.recordSince(start);
+        if (maxSize <= 0) {
+            // Caching disabled, the caller's ConnectionManager closes it
+            return statement;
+        }
+        statements.put(sql, statement);
+        evict();
+        return statement;
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    void closeAll() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+        while (statements.size() > maxSize && it.hasNext()) {
+            PreparedStatement eldest = it.next().getValue();
+            it.remove();
+            closeQuietly(eldest);
+            pool.recordStatementEviction();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
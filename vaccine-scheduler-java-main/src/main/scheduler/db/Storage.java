@@ -0,0 +1,122 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// The database the scheduler runs on, chosen with the Storage setting (sqlite or postgresql), and what
+// differs between the two: connecting, retryable errors, schema versions, id sequences and row locks.
+public abstract class Storage {
+
+    // High-water marks in the Sequences table, for databases without server-side sequences
+    private static final String SEED = "INSERT INTO Sequences SELECT ?, (%s) WHERE NOT EXISTS " +
+            "(SELECT 1 FROM Sequences WHERE Name = ?)";
+    private static final String ADVANCE = "UPDATE Sequences SET Next_value = Next_value + ? WHERE Name = ?";
+    private static final String READ = "SELECT Next_value FROM Sequences WHERE Name = ?";
+
+    private static volatile Storage instance = null;
+
+    // The configured storage, created on first use so DBPath etc. can still be set before that
+    public static Storage get() {
+        Storage storage = instance;
+        if (storage == null) {
+            synchronized (Storage.class) {
+                storage = instance;
+                if (storage == null) {
+                    storage = create(Config.getString("Storage", "sqlite"));
+                    instance = storage;
+                }
+            }
+        }
+        return storage;
+    }
+
+    private static Storage create(String name) {
+        switch (name.toLowerCase()) {
+            case "sqlite":
+                return new SqliteStorage(Config.getString("DBPath", ""));
+            case "postgresql":
+            case "postgres":
+            case "aurora":
+                return new PostgresStorage(Config.getString("Endpoint", "localhost"),
+                        Config.getInt("Port", 5432),
+                        Config.getString("Database", "postgres"),
+                        Config.getString("Username", null),
+                        Config.getString("Password", null));
+            default:
+                throw new IllegalArgumentException("Unknown Storage " + name + ", use sqlite or postgresql");
+        }
+    }
+
+    // Loads the JDBC driver, or reports that it is missing from the classpath
+    static void loadDriver(String driverName) {
+        try {
+            Class.forName(driverName);
+        } catch (ClassNotFoundException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    public abstract String name();
+
+    // A new physical connection, pooled by ConnectionPool. A read-only one refuses writes.
+    abstract Connection connect(boolean readOnly) throws SQLException;
+
+    // True when the database takes one writer at a time: writes then queue for a single writer
+    // thread (WriteQueue) instead of contending for the lock, and reads use their own connections
+    public boolean singleWriter() {
+        return false;
+    }
+
+    // True for errors of this database where running the same transaction again can succeed,
+    // such as a busy database or a lost lock
+    abstract boolean isRetryable(SQLException e);
+
+    // Schema changes on top of the base schema for this database, see SchemaMigrator
+    abstract String[][] migrations();
+
+    // The number of migrations applied, read and written inside the migration's transaction
+    abstract int schemaVersion(ConnectionManager cm) throws SQLException;
+
+    abstract void setSchemaVersion(ConnectionManager cm, int version) throws SQLException;
+
+    // A query that picks rows to claim, locked so that concurrent claimers skip each other's rows
+    // where the database supports it. Databases with a single writer need nothing extra.
+    public String lockForClaim(String query) {
+        return query;
+    }
+
+    // count new unique ids for the sequence name, committed before they are returned.
+    // By default a block is reserved from the Sequences table; seedQuery returns the first id
+    // when the sequence doesn't exist yet.
+    int[] reserveIds(String name, String seedQuery, int count) throws SQLException {
+        String seed = String.format(SEED, seedQuery);
+        int high = ConnectionManager.inTransaction(cm -> {
+            PreparedStatement seedStatement = cm.prepareStatement(seed);
+            seedStatement.setString(1, name);
+            seedStatement.setString(2, name);
+            seedStatement.executeUpdate();
+
+            PreparedStatement advance = cm.prepareStatement(ADVANCE);
+            advance.setInt(1, count);
+            advance.setString(2, name);
+            advance.executeUpdate();
+
+            PreparedStatement read = cm.prepareStatement(READ);
+            read.setString(1, name);
+            try (ResultSet resultSet = read.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt("Next_value");
+            }
+        });
+        // The stored value is the first id of the next block anyone may take
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = high - count + i;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,57 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+// A pooled driver connection whose statements are TracedStatements and whose commits and rollbacks are timed.
+final class TracedConnection implements InvocationHandler {
+
+    private final Connection connection;
+
+    private TracedConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new TracedConnection(connection));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "prepareStatement":
+                return TracedStatement.wrap((PreparedStatement) call(method, args), (String) args[0]);
+            case "createStatement":
+                return TracedStatement.wrap((Statement) call(method, args));
+            case "commit":
+                return timed(method, args, "COMMIT");
+            case "rollback":
+                return timed(method, args, args == null ? "ROLLBACK" : "ROLLBACK TO SAVEPOINT");
+            case "equals":
+                return proxy == args[0];
+            default:
+                return call(method, args);
+        }
+    }
+
+    private Object timed(Method method, Object[] args, String sql) throws Throwable {
+        long start = System.nanoTime();
+        Object result = call(method, args);
+        SlowQueryLog.record(System.nanoTime() - start, sql, null, 0, -1);
+        return result;
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package scheduler.db;
+
+import scheduler.metrics.Counter;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+// A driver statement (see TracedConnection) that is timed, counted and sent to the SlowQueryLog when slow.
+final class TracedStatement implements InvocationHandler {
+
+    private static final Histogram queryTime = Metrics.DB_EXECUTE_SECONDS.get("query");
+    private static final Histogram updateTime = Metrics.DB_EXECUTE_SECONDS.get("update");
+    private static final Histogram batchTime = Metrics.DB_EXECUTE_SECONDS.get("batch");
+    private static final Histogram executeTime = Metrics.DB_EXECUTE_SECONDS.get("execute");
+    private static final Counter executeErrors = Metrics.DB_ERRORS.get("execute");
+
+    private static final Object[] NO_PARAMS = new Object[0];
+
+    private final Statement statement;
+    // null for a plain Statement, whose SQL comes with each execute
+    private final String sql;
+    private Object[] params = NO_PARAMS;
+    private int paramCount = 0;
+    private int batch = 0;
+
+    private TracedStatement(Statement statement, String sql) {
+        this.statement = statement;
+        this.sql = sql;
+    }
+
+    static PreparedStatement wrap(PreparedStatement statement, String sql) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new TracedStatement(statement, sql));
+    }
+
+    static Statement wrap(Statement statement) {
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                new Class<?>[]{Statement.class}, new TracedStatement(statement, null));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        Histogram histogram = histogramFor(name);
+        if (histogram != null) {
+            return execute(method, args, histogram);
+        }
+        if (SlowQueryLog.enabled()) {
+            if (name.equals("setNull") && args.length >= 2) {
+                bind((Integer) args[0], null);
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+            } else if (name.equals("clearParameters")) {
+                paramCount = 0;
+            } else if (name.equals("addBatch")) {
+                batch++;
+            } else if (name.equals("clearBatch")) {
+                batch = 0;
+            }
+        }
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        return call(statement, method, args);
+    }
+
+    private Object execute(Method method, Object[] args, Histogram histogram) throws Throwable {
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = call(statement, method, args);
+        } catch (SQLException e) {
+            executeErrors.increment();
+            throw e;
+        } finally {
+            histogram.recordSince(start);
+        }
+        if (!SlowQueryLog.enabled()) {
+            return result;
+        }
+        // A plain Statement gets its SQL as the first argument
+        String text = sql != null ? sql : (args != null && args.length > 0 ? String.valueOf(args[0]) : null);
+        int batched = batch;
+        batch = 0;
+        if (result instanceof ResultSet) {
+            return Rows.wrap((ResultSet) result, this, start, text);
+        }
+        long rows = -1;
+        if (result instanceof Integer || result instanceof Long) {
+            rows = ((Number) result).longValue();
+        } else if (result instanceof int[]) {
+            rows = Arrays.stream((int[]) result).filter(n -> n > 0).asLongStream().sum();
+        } else if (result instanceof long[]) {
+            rows = Arrays.stream((long[]) result).filter(n -> n > 0).sum();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (SlowQueryLog.isSlow(elapsed)) {
+            // The parameters of a batch are those of its last row, not worth logging
+            SlowQueryLog.record(elapsed, text, batched > 0 ? null : snapshot(), batched, rows);
+        }
+        return result;
+    }
+
+    private void bind(int index, Object value) {
+        if (index < 1) {
+            return;
+        }
+        if (index > params.length) {
+            params = Arrays.copyOf(params, Math.max(index, params.length * 2));
+        }
+        params[index - 1] = value;
+        paramCount = Math.max(paramCount, index);
+    }
+
+    private Object[] snapshot() {
+        return paramCount == 0 ? null : Arrays.copyOf(params, paramCount);
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Histogram histogramFor(String method) {
+        switch (method) {
+            case "executeQuery":
+                return queryTime;
+            case "executeUpdate":
+            case "executeLargeUpdate":
+                return updateTime;
+            case "executeBatch":
+            case "executeLargeBatch":
+                return batchTime;
+            case "execute":
+                return executeTime;
+            default:
+                return null;
+        }
+    }
+
+    // Counts the rows read and records the query once they are all read or the ResultSet is closed
+    private static final class Rows implements InvocationHandler {
+        private final ResultSet resultSet;
+        // Its parameters are copied only if the query was slow; they don't change while the rows are read
+        private final TracedStatement statement;
+        private final long start;
+        private final String sql;
+        private long rows = 0;
+        private boolean done = false;
+
+        private Rows(ResultSet resultSet, TracedStatement statement, long start, String sql) {
+            this.resultSet = resultSet;
+            this.statement = statement;
+            this.start = start;
+            this.sql = sql;
+        }
+
+        static ResultSet wrap(ResultSet resultSet, TracedStatement statement, long start, String sql) {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, new Rows(resultSet, statement, start, sql));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                boolean more = (Boolean) call(resultSet, method, args);
+                if (more) {
+                    rows++;
+                } else {
+                    done();
+                }
+                return more;
+            }
+            if (name.equals("close")) {
+                done();
+            } else if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            return call(resultSet, method, args);
+        }
+
+        private void done() {
+            if (done) {
+                return;
+            }
+            done = true;
+            long elapsed = System.nanoTime() - start;
+            if (SlowQueryLog.isSlow(elapsed)) {
+                SlowQueryLog.record(elapsed, sql, statement.snapshot(), 0, rows);
+            }
+        }
+    }
+}
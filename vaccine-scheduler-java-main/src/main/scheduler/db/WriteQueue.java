@@ -0,0 +1,305 @@
+package scheduler.db;
+
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The one writer thread of a single-writer database (see Storage.singleWriter): queued transactions run
+// in a savepoint each and are committed together, up to WriterMaxBatch gathered over WriterMaxDelayUs.
+class WriteQueue {
+
+    private static volatile WriteQueue instance = null;
+
+    private static final Histogram queueTime = Metrics.WRITER_QUEUE_SECONDS.get();
+    private static final Histogram batchSize = Metrics.WRITER_BATCH_SIZE.get();
+
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final ArrayDeque<Entry<?>> queue = new ArrayDeque<>();
+    private boolean closed = false;
+    private final Thread writer;
+
+    // The transaction the writer is running, for nested transactions
+    private ConnectionManager current = null;
+
+    private static final class Entry<T> {
+        private final ConnectionManager.Transaction<T> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long queuedNanos = System.nanoTime();
+        // The command of the thread that queued it, for the slow query log
+        private final String command = SlowQueryLog.command();
+        // The value of the latest attempt, handed out after the commit
+        private T value;
+
+        Entry(ConnectionManager.Transaction<T> work) {
+            this.work = work;
+        }
+
+        void attempt(ConnectionManager cm) throws SQLException {
+            SlowQueryLog.setCommand(command);
+            try {
+                value = work.run(cm);
+            } finally {
+                SlowQueryLog.setCommand(null);
+            }
+        }
+
+        void complete() {
+            result.complete(value);
+        }
+
+        void fail(Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private WriteQueue(int maxBatch, long maxDelayMicros) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.writer = new Thread(this::write, "database-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static WriteQueue get() {
+        WriteQueue queue = instance;
+        if (queue == null) {
+            synchronized (WriteQueue.class) {
+                queue = instance;
+                if (queue == null) {
+                    queue = new WriteQueue(Config.getInt("WriterMaxBatch", 64),
+                            Config.getLong("WriterMaxDelayUs", 200));
+                    instance = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    // Finish the queued transactions and stop the writer
+    static void shutdown() {
+        WriteQueue queue;
+        synchronized (WriteQueue.class) {
+            queue = instance;
+            instance = null;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    private void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Run the work as one committed transaction on the writer thread and wait for it. Called from the
+    // writer thread it runs inline in a nested savepoint, so the work must never wait for another thread
+    // that is waiting for the writer.
+    <T> T run(ConnectionManager.Transaction<T> work) throws SQLException {
+        if (Thread.currentThread() == writer) {
+            return runNested(work);
+        }
+        Entry<T> entry = new Entry<>(work);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new SQLException("The database writer is shut down");
+            }
+            queue.add(entry);
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+        return await(entry);
+    }
+
+    private <T> T await(Entry<T> entry) throws SQLException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return entry.result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (withdraw(entry)) {
+                        throw new SQLException("Interrupted while waiting for the database writer", e);
+                    }
+                    // Already running: wait for it, the caller has to know whether it committed
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new SQLException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Take the entry out of the queue if the writer hasn't picked it up yet
+    private boolean withdraw(Entry<?> entry) {
+        lock.lock();
+        try {
+            return queue.remove(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T runNested(ConnectionManager.Transaction<T> work) throws SQLException {
+        Connection con = current.createConnection();
+        Savepoint savepoint = con.setSavepoint();
+        try {
+            T result = work.run(current);
+            con.releaseSavepoint(savepoint);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            con.rollback(savepoint);
+            throw e;
+        }
+    }
+
+    private void write() {
+        List<Entry<?>> group = new ArrayList<>();
+        while (take(group)) {
+            commit(group);
+            group.clear();
+        }
+    }
+
+    // Wait for work, then gather up to maxBatch entries into the group for at most maxDelayNanos.
+    // False once closed and drained.
+    private boolean take(List<Entry<?>> group) {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (closed) {
+                    return false;
+                }
+                queued.awaitUninterruptibly();
+            }
+            long deadline = System.nanoTime() + maxDelayNanos;
+            while (true) {
+                while (group.size() < maxBatch && !queue.isEmpty()) {
+                    group.add(queue.poll());
+                }
+                long remaining = deadline - System.nanoTime();
+                if (group.size() >= maxBatch || remaining <= 0 || closed) {
+                    return true;
+                }
+                try {
+                    queued.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    // Nobody interrupts the writer; commit what we have
+                    return true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run the group as one transaction, retrying it as a whole when the database is busy
+    private void commit(List<Entry<?>> group) {
+        long start = System.nanoTime();
+        for (Entry<?> entry : group) {
+            queueTime.record(start - entry.queuedNanos);
+        }
+        batchSize.record(group.size());
+        List<Entry<?>> pending = new ArrayList<>(group);
+        for (int attempt = 0; ; attempt++) {
+            ConnectionManager cm = ConnectionManager.forWrites();
+            try {
+                Connection con = cm.createConnection();
+                if (con == null) {
+                    throw new SQLException("Could not get a database connection");
+                }
+                con.setAutoCommit(false);
+                current = cm;
+                List<Entry<?>> succeeded = new ArrayList<>();
+                for (Entry<?> entry : pending) {
+                    Savepoint savepoint = con.setSavepoint();
+                    try {
+                        entry.attempt(cm);
+                        con.releaseSavepoint(savepoint);
+                        succeeded.add(entry);
+                    } catch (SQLException e) {
+                        if (ConnectionManager.isRetryable(e)) {
+                            throw e;
+                        }
+                        ConnectionManager.recordTransactionError(false);
+                        con.rollback(savepoint);
+                        entry.fail(e);
+                    } catch (RuntimeException | Error e) {
+                        con.rollback(savepoint);
+                        entry.fail(e);
+                    }
+                }
+                long commitStart = System.nanoTime();
+                con.commit();
+                ConnectionManager.recordCommit(commitStart);
+                for (Entry<?> entry : succeeded) {
+                    entry.complete();
+                }
+                return;
+            } catch (SQLException e) {
+                cm.rollbackQuietly();
+                pending.removeIf(entry -> entry.result.isDone());
+                boolean retry = ConnectionManager.isRetryable(e) && attempt < ConnectionManager.maxTransactionRetries();
+                ConnectionManager.recordTransactionError(retry);
+                if (!retry) {
+                    for (Entry<?> entry : pending) {
+                        entry.fail(e);
+                    }
+                    return;
+                }
+            } finally {
+                current = null;
+                cm.closeConnection();
+            }
+            try {
+                ConnectionManager.backoff(attempt);
+            } catch (SQLException e) {
+                for (Entry<?> entry : pending) {
+                    entry.fail(e);
+                }
+                return;
+            }
+        }
+    }
+}
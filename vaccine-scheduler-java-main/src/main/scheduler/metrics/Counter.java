@@ -0,0 +1,22 @@
+package scheduler.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A count that only goes up, cheap to bump from many threads at once
+public class Counter implements Metrics.CounterMXBean {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return value.sum();
+    }
+}
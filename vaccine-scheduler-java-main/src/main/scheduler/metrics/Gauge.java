@@ -0,0 +1,18 @@
+package scheduler.metrics;
+
+import java.util.function.LongSupplier;
+
+// A value read from somewhere else when the metrics are collected, such as a pool's open connections
+public class Gauge implements Metrics.GaugeMXBean {
+
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue() {
+        return supplier.getAsLong();
+    }
+}
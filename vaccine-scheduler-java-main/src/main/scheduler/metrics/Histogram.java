@@ -0,0 +1,130 @@
+package scheduler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free HDR-style distribution of non-negative longs: 32 linear sub-buckets per power of two,
+// so values are kept to within about 3%; reported divided by the divisor.
+public class Histogram implements Metrics.HistogramMXBean {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT * (65 - SUB_BITS);
+
+    private final double divisor;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(double divisor) {
+        this.divisor = divisor;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // Record the time since start, a System.nanoTime() value
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    // Values below SUB_COUNT have a bucket each; above, the bucket is the position of the highest
+    // bit and the next SUB_BITS bits below it
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    // The largest value that lands in the bucket
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long sub = SUB_COUNT + index % SUB_COUNT;
+        long highest = ((sub + 1) << shift) - 1;
+        // The top bucket ends at Long.MAX_VALUE
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+
+    // The value below which the fraction p of the recorded values fall, unscaled
+    public long percentile(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public double divisor() {
+        return divisor;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getSum() {
+        return sum.sum() / divisor;
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / divisor / n;
+    }
+
+    @Override
+    public double getMax() {
+        return max.get() / divisor;
+    }
+
+    @Override
+    public double getP50() {
+        return percentile(0.50) / divisor;
+    }
+
+    @Override
+    public double getP90() {
+        return percentile(0.90) / divisor;
+    }
+
+    @Override
+    public double getP99() {
+        return percentile(0.99) / divisor;
+    }
+
+    @Override
+    public double getP999() {
+        return percentile(0.999) / divisor;
+    }
+}
@@ -0,0 +1,293 @@
+package scheduler.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import scheduler.util.Config;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Registry of the counters, gauges and latency histograms, exported over JMX, Prometheus text at
+// MetricsPort and the metrics command. Label values come from the code, never from user input.
+public class Metrics {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final List<Family<?>> families = new CopyOnWriteArrayList<>();
+
+    private static volatile MBeanServer mbeanServer = null;
+    private static HttpServer httpServer = null;
+
+    // Commands
+    public static final Family<Histogram> COMMAND_SECONDS = histogram("scheduler_command_seconds",
+            "Time to run a command, from its turn on the command executor to its last line of output", "command");
+    public static final Family<Counter> COMMAND_ABORTS = counter("scheduler_command_aborts_total",
+            "Commands that timed out, were canceled or threw", "reason");
+
+    // Database
+    public static final Family<Histogram> DB_ACQUIRE_SECONDS = histogram("scheduler_db_acquire_seconds",
+            "Time to borrow a pooled connection, waiting for a free one included", "pool");
+    public static final Family<Histogram> DB_PREPARE_SECONDS = histogram("scheduler_db_prepare_seconds",
+            "Time to get a prepared statement, from the statement cache or the driver", "cache");
+    public static final Family<Histogram> DB_EXECUTE_SECONDS = histogram("scheduler_db_execute_seconds",
+            "Time the driver took to execute a statement", "kind");
+    public static final Family<Histogram> DB_COMMIT_SECONDS = histogram("scheduler_db_commit_seconds",
+            "Time to commit a transaction, or a group of them on the single writer", null);
+    public static final Family<Counter> DB_ERRORS = counter("scheduler_db_errors_total",
+            "SQLExceptions, by what was being done", "operation");
+    public static final Family<Counter> TX_RETRIES = counter("scheduler_tx_retries_total",
+            "Transactions rolled back and run again because the database was busy or they lost a race", null);
+    public static final Family<Histogram> WRITER_QUEUE_SECONDS = histogram("scheduler_writer_queue_seconds",
+            "Time a write transaction waited for the single writer, before it started to run", null);
+    public static final Family<Histogram> WRITER_BATCH_SIZE = new Family<>("scheduler_writer_batch_size",
+            "Write transactions committed together by the single writer", "summary", null,
+            () -> new Histogram(1));
+    public static final Family<Gauge> POOL_OPEN = gauge("scheduler_pool_open_connections",
+            "Connections the pool has open, borrowed or idle", "gauge", "pool");
+    public static final Family<Gauge> POOL_IDLE = gauge("scheduler_pool_idle_connections",
+            "Open connections waiting to be borrowed", "gauge", "pool");
+    public static final Family<Gauge> POOL_WAITS = gauge("scheduler_pool_waits_total",
+            "Borrows that found no idle connection and had to wait", "counter", "pool");
+    public static final Family<Gauge> POOL_TIMEOUTS = gauge("scheduler_pool_timeouts_total",
+            "Borrows that gave up after PoolMaxWaitMs", "counter", "pool");
+    public static final Family<Gauge> STATEMENT_CACHE_MISSES = gauge("scheduler_statement_cache_misses_total",
+            "Statements prepared by the driver because they weren't cached", "counter", "pool");
+
+    public static final Family<Counter> SLOW_QUERIES_DROPPED = counter("scheduler_slow_queries_dropped_total",
+            "Slow query log entries dropped because the log's queue was full or the file couldn't be written", null);
+
+    // Password hashing
+    public static final Family<Histogram> KDF_SECONDS = histogram("scheduler_kdf_seconds",
+            "Time to derive one password hash", null);
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+
+        double getSum();
+
+        double getMean();
+
+        double getMax();
+
+        double getP50();
+
+        double getP90();
+
+        double getP99();
+
+        double getP999();
+    }
+
+    // Metrics of the same kind, one per label value ("" when the family has no label)
+    public static final class Family<M> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String label;
+        private final Supplier<M> factory;
+        private final ConcurrentHashMap<String, M> metrics = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String label, Supplier<M> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.factory = factory;
+            families.add(this);
+        }
+
+        public M get() {
+            return get("");
+        }
+
+        // The metric for the label value, created on first use
+        public M get(String labelValue) {
+            M metric = metrics.get(labelValue);
+            if (metric == null) {
+                metric = add(labelValue, factory.get());
+            }
+            return metric;
+        }
+
+        // Add a metric made elsewhere, such as a Gauge over an existing counter.
+        // Returns the one already there if another thread added it first.
+        public M add(String labelValue, M metric) {
+            M existing = metrics.putIfAbsent(labelValue, metric);
+            if (existing != null) {
+                return existing;
+            }
+            register(this, labelValue, metric);
+            return metric;
+        }
+
+        private void write(StringBuilder out) {
+            if (metrics.isEmpty()) {
+                return;
+            }
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Map.Entry<String, M> entry : new TreeMap<>(metrics).entrySet()) {
+                String labelValue = entry.getKey();
+                M metric = entry.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    for (double quantile : QUANTILES) {
+                        sample(out, name, labelValue, "quantile", Double.toString(quantile),
+                                histogram.percentile(quantile) / histogram.divisor());
+                    }
+                    sample(out, name + "_sum", labelValue, null, null, histogram.getSum());
+                    sample(out, name + "_count", labelValue, null, null, histogram.getCount());
+                } else if (metric instanceof Counter) {
+                    sample(out, name, labelValue, null, null, ((Counter) metric).getCount());
+                } else if (metric instanceof Gauge) {
+                    sample(out, name, labelValue, null, null, ((Gauge) metric).getValue());
+                }
+            }
+        }
+
+        private void sample(StringBuilder out, String sampleName, String labelValue, String extraLabel,
+                            String extraValue, double value) {
+            out.append(sampleName);
+            boolean labeled = label != null || extraLabel != null;
+            if (labeled) {
+                out.append('{');
+            }
+            if (label != null) {
+                out.append(label).append("=\"").append(escape(labelValue)).append('"');
+            }
+            if (extraLabel != null) {
+                if (label != null) {
+                    out.append(',');
+                }
+                out.append(extraLabel).append("=\"").append(extraValue).append('"');
+            }
+            if (labeled) {
+                out.append('}');
+            }
+            out.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static Family<Histogram> histogram(String name, String help, String label) {
+        return new Family<>(name, help, "summary", label, () -> new Histogram(NANOS_PER_SECOND));
+    }
+
+    private static Family<Counter> counter(String name, String help, String label) {
+        return new Family<>(name, help, "counter", label, Counter::new);
+    }
+
+    // Gauges are added with Family.add, there is nothing to create them from
+    private static Family<Gauge> gauge(String name, String help, String type, String label) {
+        return new Family<>(name, help, type, label, () -> {
+            throw new IllegalStateException(name + " has no gauge for this label");
+        });
+    }
+
+    // Register the MXBeans and start the HTTP endpoint, as configured. Metrics are recorded either way.
+    public static synchronized void start() {
+        if (Config.getBoolean("MetricsJmx", true) && mbeanServer == null) {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            for (Family<?> family : families) {
+                family.metrics.forEach((labelValue, metric) -> register(family, labelValue, metric));
+            }
+        }
+        int port = Config.getInt("MetricsPort", 0);
+        if (port > 0 && httpServer == null) {
+            String host = Config.getString("MetricsHost", "127.0.0.1");
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+            } catch (IOException e) {
+                System.out.println("Could not serve metrics on " + host + ":" + port + ": " + e.getMessage());
+                return;
+            }
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            httpServer.start();
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    // Every metric in the Prometheus text exposition format
+    public static String prometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family<?> family : families) {
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private static void register(Family<?> family, String labelValue, Object metric) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        String type = metric.getClass().getSimpleName();
+        StringBuilder name = new StringBuilder("scheduler:type=").append(type).append(",name=").append(family.name);
+        if (family.label != null) {
+            name.append(',').append(family.label).append('=').append(quoteIfNeeded(labelValue));
+        }
+        try {
+            server.registerMBean(metric, new ObjectName(name.toString()));
+        } catch (InstanceAlreadyExistsException e) {
+            // start() and a new metric raced to register it
+        } catch (JMException e) {
+            System.out.println("Could not register " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static String quoteIfNeeded(String value) {
+        return value.matches("[A-Za-z0-9_.-]+") ? value : ObjectName.quote(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
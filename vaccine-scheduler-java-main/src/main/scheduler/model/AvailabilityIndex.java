@@ -0,0 +1,145 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// In-memory copy of the Availabilities table and of who is booked on which day, kept in a CaregiverCalendar.
+// Writers update it inside their transaction, before the commit, and undo the update if it rolls back.
+public class AvailabilityIndex {
+
+    private static final String CAREGIVERS = "SELECT Username FROM Caregivers";
+    private static final String LOAD = "SELECT Day, Username FROM Availabilities";
+    private static final String LOAD_BOOKED = "SELECT Day, C_username FROM Reservations";
+
+    // Returned by nextAvailableDay when no day has anyone
+    public static final int NO_DAY = CaregiverCalendar.NO_DAY;
+
+    private static volatile AvailabilityIndex instance = null;
+
+    private CaregiverCalendar calendar = new CaregiverCalendar();
+
+    AvailabilityIndex() {
+    }
+
+    // The shared index, loaded from the database on first use
+    public static AvailabilityIndex get() throws SQLException {
+        AvailabilityIndex index = instance;
+        if (index == null) {
+            synchronized (AvailabilityIndex.class) {
+                index = instance;
+                if (index == null) {
+                    index = new AvailabilityIndex();
+                    index.load();
+                    instance = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    // Throw away the copy, the next get() loads it again from the database
+    public static void invalidate() {
+        instance = null;
+    }
+
+    private void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            // Every caregiver first, so their ids are in username order
+            List<String> caregivers = new ArrayList<>();
+            try (ResultSet resultSet = cm.prepareStatement(CAREGIVERS).executeQuery()) {
+                while (resultSet.next()) {
+                    caregivers.add(resultSet.getString("Username"));
+                }
+            }
+            calendar = new CaregiverCalendar(caregivers);
+            try (ResultSet resultSet = cm.prepareStatement(LOAD).executeQuery()) {
+                while (resultSet.next()) {
+                    calendar.setFree(resultSet.getInt("Day"), resultSet.getString("Username"));
+                }
+            }
+            try (ResultSet resultSet = cm.prepareStatement(LOAD_BOOKED).executeQuery()) {
+                while (resultSet.next()) {
+                    calendar.setBooked(resultSet.getInt("Day"), resultSet.getString("C_username"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public void add(int day, String caregiver) {
+        calendar.setFree(day, caregiver);
+    }
+
+    public void remove(int day, String caregiver) {
+        calendar.clearFree(day, caregiver);
+    }
+
+    public boolean isAvailable(int day, String caregiver) {
+        return calendar.isFree(day, caregiver);
+    }
+
+    // First available caregiver on the day in alphabetical order, or null
+    public String firstAvailable(int day) {
+        return calendar.firstFree(day);
+    }
+
+    // How many caregivers are available on the day
+    public int count(int day) {
+        return calendar.freeCount(day);
+    }
+
+    // Atomically take the first available caregiver on the day out of the index, or null.
+    // Two threads never get the same caregiver; give it back with release() if the booking fails.
+    public String claim(int day) {
+        return calendar.takeFirstFree(day);
+    }
+
+    // Atomically take a specific caregiver out of the index, false if someone else has them
+    public boolean claim(int day, String caregiver) {
+        return calendar.clearFree(day, caregiver);
+    }
+
+    public void release(int day, String caregiver) {
+        add(day, caregiver);
+    }
+
+    // The first day at or after fromDay on which someone is available, or NO_DAY
+    public int nextAvailableDay(int fromDay) {
+        return calendar.nextFreeDay(fromDay);
+    }
+
+    // Caregivers available on the day, in alphabetical order
+    public List<String> availableOn(int day) {
+        return calendar.freeOn(day);
+    }
+
+    // The days in [from, to] the caregiver is available on, in order
+    public int[] availableDays(String caregiver, int from, int to) {
+        return calendar.freeDays(caregiver, from, to);
+    }
+
+    // A reservation of the caregiver on the day was committed
+    public void book(int day, String caregiver) {
+        calendar.setBooked(day, caregiver);
+    }
+
+    // A reservation of the caregiver on the day was deleted
+    public void unbook(int day, String caregiver) {
+        calendar.clearBooked(day, caregiver);
+    }
+
+    public boolean isBooked(int day, String caregiver) {
+        return calendar.isBooked(day, caregiver);
+    }
+
+    // How many caregivers have a reservation on the day
+    public int bookedCount(int day) {
+        return calendar.bookedCount(day);
+    }
+}
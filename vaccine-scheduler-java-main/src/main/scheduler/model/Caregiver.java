@@ -1,12 +1,27 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.util.CredentialCache;
+import scheduler.util.EpochDay;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class Caregiver {
+    // Separates patient and caregiver accounts in the CredentialCache
+    private static final String REALM = "caregiver";
+
+    // A caregiver who already has an appointment that day can't be made available again.
+    // The cast gives PostgreSQL the type of the selected parameter, SQLite keeps the value as it is.
+    public static final String UPLOAD_AVAILABILITY = "INSERT INTO Availabilities SELECT CAST(? AS integer), ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Reservations WHERE C_username = ? AND Day = ?)";
+    // Same, but a date that is already available inserts nothing instead of failing the whole batch
+    public static final String UPLOAD_AVAILABILITY_BATCH = UPLOAD_AVAILABILITY + " ON CONFLICT DO NOTHING";
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -37,40 +52,112 @@ public class Caregiver {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
+        String addCaregiver = "INSERT INTO Caregivers (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            ConnectionManager.inTransaction(cm -> {
+                PreparedStatement statement = cm.prepareStatement(addCaregiver);
+                statement.setString(1, this.username);
+                statement.setBytes(2, this.salt);
+                statement.setBytes(3, this.hash);
+                // The hash was made by Util.generateHash with the current parameters
+                statement.setString(4, PasswordHasher.current().encode());
+                return statement.executeUpdate();
+            });
         } catch (SQLException e) {
             throw new SQLException();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // day is an epoch day, see EpochDay
+    public void uploadAvailability(int day) throws SQLException {
+        AvailabilityIndex index = AvailabilityIndex.get();
+        boolean[] added = new boolean[1];
+        try {
+            ConnectionManager.inTransaction(cm -> {
+                PreparedStatement statement = cm.prepareStatement(UPLOAD_AVAILABILITY);
+                statement.setInt(1, day);
+                statement.setString(2, this.username);
+                statement.setString(3, this.username);
+                statement.setInt(4, day);
+                if (statement.executeUpdate() == 0) {
+                    // Already booked that day
+                    throw new SQLException("Caregiver " + this.username + " already has an appointment on " +
+                            EpochDay.toString(day));
+                }
+                // Added while the row is uncommitted and the write lock is held, so a booking can't
+                // take the row before the index knows about it and leave a stale entry behind
+                index.add(day, this.username);
+                added[0] = true;
+                return null;
+            });
+        } catch (SQLException e) {
+            if (added[0]) {
+                // The insert was rolled back after all
+                index.remove(day, this.username);
+            }
+            throw e;
+        }
+    }
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+    // Upload many days with one batched insert in one transaction. Returns, per day, whether it
+    // was added; false means the caregiver was already available or already booked that day.
+    public boolean[] uploadAvailability(int[] days) throws SQLException {
+        AvailabilityIndex index = AvailabilityIndex.get();
+        // Days the index already has are skipped: their row exists, or was taken by a booking that
+        // the insert would refuse anyway
+        int[] positions = new int[days.length];
+        int count = 0;
+        for (int i = 0; i < days.length; i++) {
+            if (!index.isAvailable(days[i], this.username)) {
+                positions[count++] = i;
+            }
+        }
+        boolean[] uploaded = new boolean[days.length];
+        if (count == 0) {
+            return uploaded;
+        }
+        int toInsert = count;
+        // Days put into the index by the current attempt
+        List<Integer> added = new ArrayList<>();
         try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
+            return ConnectionManager.inTransaction(cm -> {
+                // A previous attempt was rolled back
+                removeFromIndex(index, added);
+                Arrays.fill(uploaded, false);
+                PreparedStatement statement = cm.prepareStatement(UPLOAD_AVAILABILITY_BATCH);
+                for (int j = 0; j < toInsert; j++) {
+                    int day = days[positions[j]];
+                    statement.setInt(1, day);
+                    statement.setString(2, this.username);
+                    statement.setString(3, this.username);
+                    statement.setInt(4, day);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                for (int j = 0; j < counts.length; j++) {
+                    if (counts[j] > 0) {
+                        int i = positions[j];
+                        uploaded[i] = true;
+                        // Before the commit, as in uploadAvailability(int)
+                        index.add(days[i], this.username);
+                        added.add(days[i]);
+                    }
+                }
+                return uploaded;
+            });
         } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            removeFromIndex(index, added);
+            throw e;
         }
     }
 
+    private void removeFromIndex(AvailabilityIndex index, List<Integer> days) {
+        for (int day : days) {
+            index.remove(day, this.username);
+        }
+        days.clear();
+    }
+
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
@@ -100,35 +187,67 @@ public class Caregiver {
 
         public Caregiver get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+            String getCaregiver = "SELECT Salt, Hash, Kdf FROM Caregivers WHERE Username = ?";
+            byte[] salt;
+            byte[] storedHash;
+            PasswordHasher.Params params;
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+                PreparedStatement statement = cm.prepareStatement(getCaregiver);
                 statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
                         return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        cm.closeConnection();
-                        return new Caregiver(this);
                     }
+                    salt = resultSet.getBytes("Salt");
+                    storedHash = resultSet.getBytes("Hash");
+                    params = PasswordHasher.Params.decode(resultSet.getString("Kdf"));
                 }
-                return null;
             } catch (SQLException e) {
                 throw new SQLException();
             } finally {
+                // don't hold a pooled connection while the KDF runs
                 cm.closeConnection();
             }
+
+            // check if the password matches, unless it was verified against this hash moments ago
+            if (!CredentialCache.isVerified(REALM, username, password, storedHash)) {
+                if (!PasswordHasher.verify(password, salt, storedHash, params)) {
+                    return null;
+                }
+                if (PasswordHasher.needsRehash(params)) {
+                    byte[] newSalt = Util.generateSalt();
+                    byte[] newHash = Util.generateHash(password, newSalt);
+                    if (rehash(newSalt, newHash, storedHash)) {
+                        salt = newSalt;
+                        storedHash = newHash;
+                    }
+                }
+                CredentialCache.remember(REALM, username, password, storedHash);
+            }
+            this.salt = salt;
+            // we need to call Util.trim() to get rid of the paddings,
+            // try to remove the use of Util.trim() and you'll see :)
+            this.hash = Util.trim(storedHash);
+            return new Caregiver(this);
+        }
+
+        // Replace a hash made with old parameters, unless the row changed since we read it
+        private boolean rehash(byte[] newSalt, byte[] newHash, byte[] oldHash) throws SQLException {
+            String updateCaregiver = "UPDATE Caregivers SET Salt = ?, Hash = ?, Kdf = ? WHERE Username = ? AND Hash = ?";
+            try {
+                return ConnectionManager.inTransaction(cm -> {
+                    PreparedStatement statement = cm.prepareStatement(updateCaregiver);
+                    statement.setBytes(1, newSalt);
+                    statement.setBytes(2, newHash);
+                    statement.setString(3, PasswordHasher.current().encode());
+                    statement.setString(4, this.username);
+                    statement.setBytes(5, oldHash);
+                    return statement.executeUpdate() == 1;
+                });
+            } catch (SQLException e) {
+                throw new SQLException();
+            }
         }
     }
 }
@@ -0,0 +1,373 @@
+package scheduler.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Which caregiver is free and which is booked on which epoch day, as sparse bitsets per caregiver and per day.
+// Every method is synchronized, so taking a caregiver off a day is atomic.
+public class CaregiverCalendar {
+
+    // Returned when no day matches
+    public static final int NO_DAY = Integer.MIN_VALUE;
+
+    private static final int NO_CAREGIVER = -1;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // Interned usernames: id -> username and back
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[16];
+    private int size = 0;
+    // Ids below this are in username order
+    private final int sortedIds;
+
+    // Per caregiver id, null until they are first free or booked
+    private DayBits[] free = new DayBits[16];
+    private DayBits[] booked = new DayBits[16];
+
+    // Per day: pages of PAGE_SIZE days, only those with a known day, sorted by page number
+    private int[] pageNumbers = new int[16];
+    private Page[] pages = new Page[16];
+    private int pageCount = 0;
+
+    private static final class Page {
+        // Caregivers free on each day of the page, as bits over ids; null when nobody has been
+        final long[][] free = new long[PAGE_SIZE][];
+        final int[] freeCount = new int[PAGE_SIZE];
+        final int[] bookedCount = new int[PAGE_SIZE];
+    }
+
+    // A sparse bitset over epoch days: the words that hold a day that was set, sorted by word number.
+    // Bit d of word w is day w * 64 + d, for days before 1970 too. A day far from the others costs one
+    // word, not the words in between.
+    private static final class DayBits {
+        private int[] keys = new int[4];
+        private long[] words = new long[4];
+        private int size = 0;
+
+        // The word's index, or -(insertion point) - 1, as Arrays.binarySearch
+        private int find(int word) {
+            return Arrays.binarySearch(keys, 0, size, word);
+        }
+
+        boolean get(int day) {
+            int i = find(day >> 6);
+            return i >= 0 && (words[i] & (1L << day)) != 0;
+        }
+
+        // False if the day was already set
+        boolean set(int day) {
+            int word = day >> 6;
+            int i = find(word);
+            if (i < 0) {
+                i = -i - 1;
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    words = Arrays.copyOf(words, size * 2);
+                }
+                System.arraycopy(keys, i, keys, i + 1, size - i);
+                System.arraycopy(words, i, words, i + 1, size - i);
+                keys[i] = word;
+                words[i] = 0;
+                size++;
+            }
+            // Shifts only use the low six bits of the day
+            long bit = 1L << day;
+            if ((words[i] & bit) != 0) {
+                return false;
+            }
+            words[i] |= bit;
+            return true;
+        }
+
+        // False if the day wasn't set; its word stays, for the next time
+        boolean clear(int day) {
+            int i = find(day >> 6);
+            long bit = 1L << day;
+            if (i < 0 || (words[i] & bit) == 0) {
+                return false;
+            }
+            words[i] &= ~bit;
+            return true;
+        }
+
+        // The first day set in [from, to], or NO_DAY
+        int next(int from, int to) {
+            int i = find(from >> 6);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; i < size && keys[i] <= to >> 6; i++) {
+                long bits = words[i];
+                int base = keys[i] << 6;
+                if (base < from) {
+                    bits &= -1L << (from - base);
+                }
+                if (bits != 0) {
+                    int day = base + Long.numberOfTrailingZeros(bits);
+                    return day <= to ? day : NO_DAY;
+                }
+            }
+            return NO_DAY;
+        }
+    }
+
+    public CaregiverCalendar() {
+        this(Collections.emptyList());
+    }
+
+    // Interns the caregivers in username order, as ConcurrentSkipListSet<String> would sort them
+    public CaregiverCalendar(Collection<String> caregivers) {
+        List<String> sorted = new ArrayList<>(caregivers);
+        Collections.sort(sorted);
+        for (String caregiver : sorted) {
+            intern(caregiver);
+        }
+        sortedIds = size;
+    }
+
+    // The caregiver's id, given a new one the first time
+    public synchronized int intern(String caregiver) {
+        Integer id = ids.get(caregiver);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            free = Arrays.copyOf(free, size * 2);
+            booked = Arrays.copyOf(booked, size * 2);
+        }
+        names[size] = caregiver;
+        ids.put(caregiver, size);
+        return size++;
+    }
+
+    public synchronized int caregivers() {
+        return size;
+    }
+
+    // Mark the caregiver free on the day, false if they already were
+    public synchronized boolean setFree(int day, String caregiver) {
+        int id = intern(caregiver);
+        if (!days(free, id).set(day)) {
+            return false;
+        }
+        Page page = page(day >> PAGE_BITS);
+        int i = day & (PAGE_SIZE - 1);
+        long[] bits = page.free[i];
+        if (bits == null || bits.length <= id >> 6) {
+            // Room for every id handed out so far
+            bits = bits == null ? new long[((size - 1) >> 6) + 1] : Arrays.copyOf(bits, ((size - 1) >> 6) + 1);
+            page.free[i] = bits;
+        }
+        bits[id >> 6] |= 1L << id;
+        page.freeCount[i]++;
+        return true;
+    }
+
+    // Mark the caregiver not free on the day, false if they weren't
+    public synchronized boolean clearFree(int day, String caregiver) {
+        Integer id = ids.get(caregiver);
+        return id != null && clearFree(day, id);
+    }
+
+    public synchronized boolean isFree(int day, String caregiver) {
+        Integer id = ids.get(caregiver);
+        return id != null && free[id] != null && free[id].get(day);
+    }
+
+    // How many caregivers are free on the day
+    public synchronized int freeCount(int day) {
+        Page page = existingPage(day);
+        return page == null ? 0 : page.freeCount[day & (PAGE_SIZE - 1)];
+    }
+
+    // The first caregiver free on the day in alphabetical order, or null
+    public synchronized String firstFree(int day) {
+        int id = firstFreeId(day);
+        return id == NO_CAREGIVER ? null : names[id];
+    }
+
+    // Take the first caregiver free on the day off it, or null; two callers never get the same one
+    public synchronized String takeFirstFree(int day) {
+        int id = firstFreeId(day);
+        if (id == NO_CAREGIVER) {
+            return null;
+        }
+        clearFree(day, id);
+        return names[id];
+    }
+
+    // The caregivers free on the day, in alphabetical order
+    public synchronized List<String> freeOn(int day) {
+        List<String> caregivers = new ArrayList<>();
+        long[] bits = freeBits(day);
+        if (bits == null) {
+            return caregivers;
+        }
+        boolean unsorted = false;
+        for (int id = nextSetBit(bits, 0); id != NO_CAREGIVER; id = nextSetBit(bits, id + 1)) {
+            caregivers.add(names[id]);
+            unsorted |= id >= sortedIds;
+        }
+        if (unsorted) {
+            Collections.sort(caregivers);
+        }
+        return caregivers;
+    }
+
+    // The first day at or after from on which some caregiver is free, or NO_DAY
+    public synchronized int nextFreeDay(int from) {
+        int p = Arrays.binarySearch(pageNumbers, 0, pageCount, from >> PAGE_BITS);
+        if (p < 0) {
+            p = -p - 1;
+        }
+        for (; p < pageCount; p++) {
+            Page page = pages[p];
+            int pageStart = pageNumbers[p] << PAGE_BITS;
+            for (int i = Math.max(0, from - pageStart); i < PAGE_SIZE; i++) {
+                if (page.freeCount[i] > 0) {
+                    return pageStart + i;
+                }
+            }
+        }
+        return NO_DAY;
+    }
+
+    // The days in [from, to] the caregiver is free on, in order
+    public synchronized int[] freeDays(String caregiver, int from, int to) {
+        Integer id = ids.get(caregiver);
+        DayBits days = id == null ? null : free[id];
+        if (days == null || from > to) {
+            return new int[0];
+        }
+        int[] result = new int[16];
+        int count = 0;
+        for (int day = days.next(from, to); day != NO_DAY; day = day == to ? NO_DAY : days.next(day + 1, to)) {
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = day;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Mark the caregiver booked on the day, false if they already were
+    public synchronized boolean setBooked(int day, String caregiver) {
+        int id = intern(caregiver);
+        if (!days(booked, id).set(day)) {
+            return false;
+        }
+        page(day >> PAGE_BITS).bookedCount[day & (PAGE_SIZE - 1)]++;
+        return true;
+    }
+
+    // Mark the caregiver not booked on the day, false if they weren't
+    public synchronized boolean clearBooked(int day, String caregiver) {
+        Integer id = ids.get(caregiver);
+        if (id == null || booked[id] == null || !booked[id].clear(day)) {
+            return false;
+        }
+        existingPage(day).bookedCount[day & (PAGE_SIZE - 1)]--;
+        return true;
+    }
+
+    public synchronized boolean isBooked(int day, String caregiver) {
+        Integer id = ids.get(caregiver);
+        return id != null && booked[id] != null && booked[id].get(day);
+    }
+
+    // How many caregivers are booked on the day
+    public synchronized int bookedCount(int day) {
+        Page page = existingPage(day);
+        return page == null ? 0 : page.bookedCount[day & (PAGE_SIZE - 1)];
+    }
+
+    private boolean clearFree(int day, int id) {
+        if (free[id] == null || !free[id].clear(day)) {
+            return false;
+        }
+        Page page = existingPage(day);
+        int i = day & (PAGE_SIZE - 1);
+        page.free[i][id >> 6] &= ~(1L << id);
+        page.freeCount[i]--;
+        return true;
+    }
+
+    private int firstFreeId(int day) {
+        long[] bits = freeBits(day);
+        if (bits == null) {
+            return NO_CAREGIVER;
+        }
+        int first = nextSetBit(bits, 0);
+        if (first == NO_CAREGIVER) {
+            return NO_CAREGIVER;
+        }
+        // Ids from sortedIds on aren't in username order, any of them may come first
+        for (int id = nextSetBit(bits, Math.max(first + 1, sortedIds)); id != NO_CAREGIVER;
+             id = nextSetBit(bits, id + 1)) {
+            if (names[id].compareTo(names[first]) < 0) {
+                first = id;
+            }
+        }
+        return first;
+    }
+
+    private long[] freeBits(int day) {
+        Page page = existingPage(day);
+        return page == null ? null : page.free[day & (PAGE_SIZE - 1)];
+    }
+
+    // The lowest id at or after from whose bit is set, or NO_CAREGIVER
+    private static int nextSetBit(long[] bits, int from) {
+        int w = from >> 6;
+        if (w >= bits.length) {
+            return NO_CAREGIVER;
+        }
+        long word = bits[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == bits.length) {
+                return NO_CAREGIVER;
+            }
+            word = bits[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private static DayBits days(DayBits[] perCaregiver, int id) {
+        if (perCaregiver[id] == null) {
+            perCaregiver[id] = new DayBits();
+        }
+        return perCaregiver[id];
+    }
+
+    private Page existingPage(int day) {
+        int p = Arrays.binarySearch(pageNumbers, 0, pageCount, day >> PAGE_BITS);
+        return p < 0 ? null : pages[p];
+    }
+
+    // The page, added if it isn't there yet
+    private Page page(int pageNumber) {
+        int p = Arrays.binarySearch(pageNumbers, 0, pageCount, pageNumber);
+        if (p >= 0) {
+            return pages[p];
+        }
+        p = -p - 1;
+        if (pageCount == pages.length) {
+            pageNumbers = Arrays.copyOf(pageNumbers, pageCount * 2);
+            pages = Arrays.copyOf(pages, pageCount * 2);
+        }
+        System.arraycopy(pageNumbers, p, pageNumbers, p + 1, pageCount - p);
+        System.arraycopy(pages, p, pages, p + 1, pageCount - p);
+        Page page = new Page();
+        pageNumbers[p] = pageNumber;
+        pages[p] = page;
+        pageCount++;
+        return page;
+    }
+}
@@ -1,15 +1,18 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.util.CredentialCache;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
 
 public class Patient {
+    // Separates patient and caregiver accounts in the CredentialCache
+    private static final String REALM = "patient";
+
     // Attributes
     private final String username;
     private final byte[] salt;
@@ -44,25 +47,22 @@ public class Patient {
 
     // Method used to insert values into patients table
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
+        String addPatient = "INSERT INTO Patients (Username, Salt, Hash, Kdf) VALUES (?, ?, ?, ?)";
         try {
             // Code that might throw an exception
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            // Set parameter of the SQL statement
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            ConnectionManager.inTransaction(cm -> {
+                PreparedStatement statement = cm.prepareStatement(addPatient);
+                // Set parameter of the SQL statement
+                statement.setString(1, this.username);
+                statement.setBytes(2, this.salt);
+                statement.setBytes(3, this.hash);
+                // The hash was made by Util.generateHash with the current parameters
+                statement.setString(4, PasswordHasher.current().encode());
+                return statement.executeUpdate();
+            });
         } catch (SQLException e) {
             // Handles the exception if one occurs
             throw new SQLException();
-        } finally {
-            // This code runs no matter what
-            // Used to close database connection
-            cm.closeConnection();
         }
     }
 
@@ -95,35 +95,67 @@ public class Patient {
         }
         public Patient get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+            String getPatient = "SELECT Salt, Hash, Kdf FROM Patients WHERE Username = ?";
+            byte[] salt;
+            byte[] storedHash;
+            PasswordHasher.Params params;
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+                PreparedStatement statement = cm.prepareStatement(getPatient);
                 statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
                         return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        cm.closeConnection();
-                        return new Patient(this);
                     }
+                    salt = resultSet.getBytes("Salt");
+                    storedHash = resultSet.getBytes("Hash");
+                    params = PasswordHasher.Params.decode(resultSet.getString("Kdf"));
                 }
-                return null;
             } catch (SQLException e) {
                 throw new SQLException();
             } finally {
+                // don't hold a pooled connection while the KDF runs
                 cm.closeConnection();
             }
+
+            // check if the password matches, unless it was verified against this hash moments ago
+            if (!CredentialCache.isVerified(REALM, username, password, storedHash)) {
+                if (!PasswordHasher.verify(password, salt, storedHash, params)) {
+                    return null;
+                }
+                if (PasswordHasher.needsRehash(params)) {
+                    byte[] newSalt = Util.generateSalt();
+                    byte[] newHash = Util.generateHash(password, newSalt);
+                    if (rehash(newSalt, newHash, storedHash)) {
+                        salt = newSalt;
+                        storedHash = newHash;
+                    }
+                }
+                CredentialCache.remember(REALM, username, password, storedHash);
+            }
+            this.salt = salt;
+            // we need to call Util.trim() to get rid of the paddings,
+            // try to remove the use of Util.trim() and you'll see :)
+            this.hash = Util.trim(storedHash);
+            return new Patient(this);
+        }
+
+        // Replace a hash made with old parameters, unless the row changed since we read it
+        private boolean rehash(byte[] newSalt, byte[] newHash, byte[] oldHash) throws SQLException {
+            String updatePatient = "UPDATE Patients SET Salt = ?, Hash = ?, Kdf = ? WHERE Username = ? AND Hash = ?";
+            try {
+                return ConnectionManager.inTransaction(cm -> {
+                    PreparedStatement statement = cm.prepareStatement(updatePatient);
+                    statement.setBytes(1, newSalt);
+                    statement.setBytes(2, newHash);
+                    statement.setString(3, PasswordHasher.current().encode());
+                    statement.setString(4, this.username);
+                    statement.setBytes(5, oldHash);
+                    return statement.executeUpdate() == 1;
+                });
+            } catch (SQLException e) {
+                throw new SQLException();
+            }
         }
 
 
@@ -0,0 +1,340 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.db.Storage;
+import scheduler.util.Config;
+import scheduler.util.EpochDay;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class Reservation {
+    // First caregiver in alphabetical order who is available that day and not already booked on it
+    public static final String FIRST_FREE_CAREGIVER = "SELECT a.Username FROM Availabilities AS a WHERE a.Day = ? " +
+            "AND NOT EXISTS (SELECT 1 FROM Reservations AS r WHERE r.C_username = a.Username AND r.Day = a.Day) " +
+            "ORDER BY a.Username LIMIT 1";
+    // Conditional writes, so two bookings can never both take the last dose or the same caregiver
+    public static final String TAKE_DOSE = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    public static final String RETURN_DOSE = "UPDATE Vaccines SET Doses = Doses + 1 WHERE Name = ?";
+    public static final String CLAIM_AVAILABILITY = "DELETE FROM Availabilities WHERE Day = ? AND Username = ?";
+    public static final String RELEASE_AVAILABILITY = "INSERT INTO Availabilities VALUES (?, ?) ON CONFLICT DO NOTHING";
+    public static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)";
+    public static final String SELECT_BY_ID = "SELECT Day, C_username, P_username, Vaccine_name FROM Reservations " +
+            "WHERE appointment_id = ?";
+    public static final String DELETE_BY_ID = "DELETE FROM Reservations WHERE appointment_id = ?";
+    // First day at or after the given one with a caregiver who is available and not booked on it,
+    // walked in (Day, Username) primary key order
+    public static final String FIRST_FREE_DAY = "SELECT a.Day FROM Availabilities AS a WHERE a.Day >= ? " +
+            "AND NOT EXISTS (SELECT 1 FROM Reservations AS r WHERE r.C_username = a.Username AND r.Day = a.Day) " +
+            "ORDER BY a.Day LIMIT 1";
+
+    // Reasons a booking can fail, the messages of the IllegalStateException thrown
+    public static final String NO_CAREGIVER = "No caregiver is available";
+    public static final String NO_DOSES = "Not enough available doses";
+
+    // Appointment ids come in blocks from the Storage's sequence, seeded from the existing reservations
+    private static final IdAllocator appointmentIds = new IdAllocator("appointment_id",
+            "SELECT COALESCE(MAX(appointment_id), 0) + 1 FROM Reservations", Config.getInt("IdBlockSize", 64));
+
+    private final int appointmentId;
+    // Epoch day, see EpochDay
+    private final int day;
+    private final String caregiverUsername;
+    private final String patientUsername;
+    private final String vaccineName;
+
+    private Reservation(int appointmentId, int day, String caregiverUsername, String patientUsername,
+                        String vaccineName) {
+        this.appointmentId = appointmentId;
+        this.day = day;
+        this.caregiverUsername = caregiverUsername;
+        this.patientUsername = patientUsername;
+        this.vaccineName = vaccineName;
+    }
+
+    // Getters
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getPatientUsername() {
+        return patientUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    @Override
+    public String toString() {
+        return "Reservation{" +
+                "appointmentId=" + appointmentId +
+                ", day=" + EpochDay.toString(day) +
+                ", caregiverUsername='" + caregiverUsername + '\'' +
+                ", patientUsername='" + patientUsername + '\'' +
+                ", vaccineName='" + vaccineName + '\'' +
+                '}';
+    }
+
+    public static class ReservationBuilder {
+        private final int day;
+        private final String patientUsername;
+        private final String vaccineName;
+
+        public ReservationBuilder(int day, String patientUsername, String vaccineName) {
+            this.day = day;
+            this.patientUsername = patientUsername;
+            this.vaccineName = vaccineName;
+        }
+
+        // Claim a caregiver, a dose and an appointment id in one transaction.
+        // Throws IllegalStateException with the reason when nothing can be booked.
+        public Reservation reserve() throws SQLException {
+            // Taken before the transaction starts, a refill commits on its own connection
+            int appointmentId = appointmentIds.next();
+            AvailabilityIndex index = AvailabilityIndex.get();
+            // The caregiver the current attempt took out of the index
+            String[] claimed = new String[1];
+            boolean booked = false;
+            try {
+                Reservation reservation = ConnectionManager.inTransaction(cm -> {
+                    // A previous attempt was rolled back, put its caregiver back first
+                    release(index, claimed);
+                    try {
+                        return reserve(cm, index, appointmentId, claimed);
+                    } catch (SQLException | RuntimeException e) {
+                        // Give the caregiver back to the index before the rollback restores their row,
+                        // while this transaction still holds the write lock. Released after the rollback,
+                        // a booking could take the restored row in between and leave a stale entry.
+                        release(index, claimed);
+                        throw e;
+                    }
+                });
+                index.book(day, claimed[0]);
+                claimed[0] = null;
+                booked = true;
+                VaccineInventory.get().taken(vaccineName, 1);
+                return reservation;
+            } finally {
+                release(index, claimed);
+                if (!booked) {
+                    appointmentIds.giveBack(appointmentId);
+                }
+            }
+        }
+
+        private void release(AvailabilityIndex index, String[] claimed) {
+            if (claimed[0] != null) {
+                index.release(day, claimed[0]);
+                claimed[0] = null;
+            }
+        }
+
+        private Reservation reserve(ConnectionManager cm, AvailabilityIndex index, int appointmentId,
+                                    String[] claimed) throws SQLException {
+            // Caregiver: take the first one from the index and remove their availability row.
+            // If the row is already gone the index was stale, drop that caregiver and take the next.
+            String caregiverUsername;
+            while (true) {
+                caregiverUsername = index.claim(day);
+                if (caregiverUsername == null) {
+                    // The index only knows what this process has seen, ask the database before giving up
+                    caregiverUsername = firstFreeCaregiver(cm);
+                    if (caregiverUsername == null) {
+                        throw new IllegalStateException(NO_CAREGIVER);
+                    }
+                    index.claim(day, caregiverUsername);
+                }
+                claimed[0] = caregiverUsername;
+                PreparedStatement claim = cm.prepareStatement(CLAIM_AVAILABILITY);
+                claim.setInt(1, day);
+                claim.setString(2, caregiverUsername);
+                if (claim.executeUpdate() == 1) {
+                    break;
+                }
+                claimed[0] = null;
+            }
+
+            // Vaccine
+            PreparedStatement takeDose = cm.prepareStatement(TAKE_DOSE);
+            takeDose.setString(1, vaccineName);
+            if (takeDose.executeUpdate() == 0) {
+                throw new IllegalStateException(NO_DOSES);
+            }
+
+            PreparedStatement insert = cm.prepareStatement(INSERT_RESERVATION);
+            insert.setInt(1, day);
+            insert.setString(2, caregiverUsername);
+            insert.setString(3, patientUsername);
+            insert.setString(4, vaccineName);
+            insert.setInt(5, appointmentId);
+            insert.executeUpdate();
+
+            return new Reservation(appointmentId, day, caregiverUsername, patientUsername, vaccineName);
+        }
+
+        private String firstFreeCaregiver(ConnectionManager cm) throws SQLException {
+            // Locked where the database has row locks, so concurrent bookings skip each other's caregiver
+            PreparedStatement caregiverQuery = cm.prepareStatement(Storage.get().lockForClaim(FIRST_FREE_CAREGIVER));
+            caregiverQuery.setInt(1, day);
+            try (ResultSet resultSet = caregiverQuery.executeQuery()) {
+                return resultSet.next() ? resultSet.getString("Username") : null;
+            }
+        }
+    }
+
+    public static class NextReservationBuilder {
+        private final int from;
+        private final String patientUsername;
+        private final String vaccineName;
+
+        public NextReservationBuilder(int from, String patientUsername, String vaccineName) {
+            this.from = from;
+            this.patientUsername = patientUsername;
+            this.vaccineName = vaccineName;
+        }
+
+        // Book the earliest day at or after from that has a free caregiver, each attempt a normal
+        // reservation. If someone else takes the last caregiver of a day first, move on to the next day.
+        // Throws IllegalStateException when no day has anyone left or the vaccine has run out.
+        public Reservation reserve() throws SQLException {
+            AvailabilityIndex index = AvailabilityIndex.get();
+            VaccineInventory inventory = VaccineInventory.get();
+            int day = from;
+            while (true) {
+                if (inventory.getDoses(vaccineName) <= 0) {
+                    throw new IllegalStateException(NO_DOSES);
+                }
+                int next = index.nextAvailableDay(day);
+                if (next == AvailabilityIndex.NO_DAY) {
+                    // The index only knows what this process has seen, ask the database before giving up
+                    next = firstFreeDay(day);
+                    if (next == AvailabilityIndex.NO_DAY) {
+                        throw new IllegalStateException(NO_CAREGIVER);
+                    }
+                }
+                try {
+                    return new ReservationBuilder(next, patientUsername, vaccineName).reserve();
+                } catch (IllegalStateException e) {
+                    if (!NO_CAREGIVER.equals(e.getMessage())) {
+                        throw e;
+                    }
+                }
+                day = next + 1;
+            }
+        }
+
+        private int firstFreeDay(int day) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                PreparedStatement statement = cm.prepareStatement(FIRST_FREE_DAY);
+                statement.setInt(1, day);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getInt("Day") : AvailabilityIndex.NO_DAY;
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class ReservationGetter {
+        private final int appointmentId;
+
+        public ReservationGetter(int appointmentId) {
+            this.appointmentId = appointmentId;
+        }
+
+        public Reservation get() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                return get(cm);
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        // Delete the reservation, give the caregiver their availability back and return the dose,
+        // all in one transaction, then update the in-memory copies. Returns the canceled reservation,
+        // or null if the id doesn't exist.
+        public Reservation cancel() throws SQLException {
+            AvailabilityIndex index = AvailabilityIndex.get();
+            // The availability the current attempt put into the index
+            Reservation[] released = new Reservation[1];
+            Reservation canceled;
+            try {
+                canceled = ConnectionManager.inTransaction(cm -> {
+                    // A previous attempt was rolled back, the caregiver is still booked
+                    unrelease(index, released);
+                    return cancel(cm, index, released);
+                });
+            } catch (SQLException e) {
+                unrelease(index, released);
+                throw e;
+            }
+            if (canceled != null) {
+                VaccineInventory.get().added(canceled.vaccineName, 1);
+            }
+            return canceled;
+        }
+
+        private Reservation cancel(ConnectionManager cm, AvailabilityIndex index, Reservation[] released)
+                throws SQLException {
+            Reservation reservation = get(cm);
+            if (reservation == null) {
+                return null;
+            }
+
+            PreparedStatement delete = cm.prepareStatement(DELETE_BY_ID);
+            delete.setInt(1, appointmentId);
+            if (delete.executeUpdate() == 0) {
+                // Canceled by someone else in the meantime
+                return null;
+            }
+
+            PreparedStatement release = cm.prepareStatement(RELEASE_AVAILABILITY);
+            release.setInt(1, reservation.day);
+            release.setString(2, reservation.caregiverUsername);
+            release.executeUpdate();
+            // Into the index before the commit, for the same reason as in Caregiver.uploadAvailability
+            index.release(reservation.day, reservation.caregiverUsername);
+            index.unbook(reservation.day, reservation.caregiverUsername);
+            released[0] = reservation;
+
+            PreparedStatement returnDose = cm.prepareStatement(RETURN_DOSE);
+            returnDose.setString(1, reservation.vaccineName);
+            returnDose.executeUpdate();
+            return reservation;
+        }
+
+        private void unrelease(AvailabilityIndex index, Reservation[] released) {
+            if (released[0] != null) {
+                index.remove(released[0].day, released[0].caregiverUsername);
+                index.book(released[0].day, released[0].caregiverUsername);
+                released[0] = null;
+            }
+        }
+
+        private Reservation get(ConnectionManager cm) throws SQLException {
+            PreparedStatement statement = cm.prepareStatement(SELECT_BY_ID);
+            statement.setInt(1, appointmentId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Reservation(appointmentId, resultSet.getInt("Day"), resultSet.getString("C_username"),
+                        resultSet.getString("P_username"), resultSet.getString("Vaccine_name"));
+            }
+        }
+    }
+}
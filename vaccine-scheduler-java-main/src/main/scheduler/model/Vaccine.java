@@ -1,10 +1,5 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 public class Vaccine {
@@ -30,20 +25,12 @@ public class Vaccine {
         return availableDoses;
     }
 
+    // Written through the VaccineInventory, which keeps the dose counts in memory as well
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        VaccineInventory inventory = VaccineInventory.get();
+        inventory.create(this.vaccineName);
+        if (this.availableDoses > 0) {
+            this.availableDoses = inventory.add(this.vaccineName, this.availableDoses);
         }
     }
 
@@ -52,44 +39,19 @@ public class Vaccine {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE Name = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        this.availableDoses = VaccineInventory.get().add(this.vaccineName, num);
     }
 
-    // Decrement the available doses
+    // Decrement the available doses, never below zero
     public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
-            throw new IllegalArgumentException("Not enough available doses!");
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE Vaccines SET Doses = ? WHERE Name = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate(); // ! Problem child
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        VaccineInventory inventory = VaccineInventory.get();
+        if (!inventory.take(this.vaccineName, num)) {
+            throw new IllegalArgumentException("Not enough available doses!");
         }
+        this.availableDoses = inventory.getDoses(this.vaccineName);
     }
 
     @Override
@@ -123,25 +85,13 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    cm.closeConnection();
-                    return new Vaccine(this);
-                }
+            // Served from memory, no database round trip
+            int doses = VaccineInventory.get().getDoses(this.vaccineName);
+            if (doses < 0) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            this.availableDoses = doses;
+            return new Vaccine(this);
         }
     }
 }
@@ -0,0 +1,225 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Dose counts for every vaccine, one atomic counter each, kept as a read cache of the Vaccines table.
+// The table changes inside a transaction and the counter follows once it has committed.
+public class VaccineInventory {
+
+    private static final String LOAD = "SELECT Name, Doses FROM Vaccines";
+    private static final String LOAD_ONE = "SELECT Doses FROM Vaccines WHERE Name = ?";
+    private static final String CREATE = "INSERT INTO Vaccines VALUES (?, 0) ON CONFLICT DO NOTHING";
+    public static final String ADD = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+    // Conditional, so the count never goes negative
+    public static final String TAKE = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+
+    private static volatile VaccineInventory instance = null;
+
+    private final ConcurrentHashMap<String, AtomicInteger> doses = new ConcurrentHashMap<>();
+
+    // Bumped on every change; a snapshot is reused while its version is current
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = null;
+
+    private static final class Snapshot {
+        private final long version;
+        private final SortedMap<String, Integer> doses;
+
+        private Snapshot(long version, SortedMap<String, Integer> doses) {
+            this.version = version;
+            this.doses = doses;
+        }
+    }
+
+    private VaccineInventory() {
+    }
+
+    // The shared inventory, loaded from the database on first use
+    public static VaccineInventory get() throws SQLException {
+        VaccineInventory inventory = instance;
+        if (inventory == null) {
+            synchronized (VaccineInventory.class) {
+                inventory = instance;
+                if (inventory == null) {
+                    inventory = new VaccineInventory();
+                    inventory.load();
+                    instance = inventory;
+                }
+            }
+        }
+        return inventory;
+    }
+
+    // Throw away the copy, the next get() loads it again from the database
+    public static void invalidate() {
+        instance = null;
+    }
+
+    // Doses of the vaccine, or -1 if there is no such vaccine.
+    // A vaccine created by another process since the load is read from the table.
+    public int getDoses(String name) throws SQLException {
+        AtomicInteger counter = counter(name);
+        return counter == null ? -1 : counter.get();
+    }
+
+    // Name -> doses sorted by name. The same map is handed out until the next change.
+    public SortedMap<String, Integer> snapshot() {
+        long current = version.get();
+        Snapshot cached = snapshot;
+        if (cached == null || cached.version != current) {
+            TreeMap<String, Integer> copy = new TreeMap<>();
+            for (Map.Entry<String, AtomicInteger> entry : doses.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().get());
+            }
+            // Tagged with the version read before copying, so a change made meanwhile forces a rebuild
+            cached = new Snapshot(current, Collections.unmodifiableSortedMap(copy));
+            snapshot = cached;
+        }
+        return cached.doses;
+    }
+
+    // Make sure the vaccine exists in the Vaccines table and the inventory
+    public void create(String name) throws SQLException {
+        if (doses.containsKey(name)) {
+            return;
+        }
+        ConnectionManager.inTransaction(cm -> {
+            PreparedStatement statement = cm.prepareStatement(CREATE);
+            statement.setString(1, name);
+            return statement.executeUpdate();
+        });
+        counter(name);
+    }
+
+    // Add doses in a transaction of their own, returns the new count
+    public int add(String name, int num) throws SQLException {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        create(name);
+        ConnectionManager.inTransaction(cm -> {
+            add(cm, name, num);
+            return null;
+        });
+        return added(name, num);
+    }
+
+    // Take doses in a transaction of their own if there are enough, false (and nothing changes) otherwise
+    public boolean take(String name, int num) throws SQLException {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        if (!ConnectionManager.inTransaction(cm -> take(cm, name, num))) {
+            return false;
+        }
+        taken(name, num);
+        return true;
+    }
+
+    // Add doses to several vaccines in one transaction, as one batched update
+    public void addAll(Map<String, Integer> added) throws SQLException {
+        for (Map.Entry<String, Integer> entry : added.entrySet()) {
+            if (entry.getValue() <= 0) {
+                throw new IllegalArgumentException("Argument cannot be negative!");
+            }
+            create(entry.getKey());
+        }
+        ConnectionManager.inTransaction(cm -> {
+            PreparedStatement statement = cm.prepareStatement(ADD);
+            for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                statement.setInt(1, entry.getValue());
+                statement.setString(2, entry.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            return null;
+        });
+        for (Map.Entry<String, Integer> entry : added.entrySet()) {
+            added(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Add doses inside the caller's transaction; call added() once it has committed
+    public void add(ConnectionManager cm, String name, int num) throws SQLException {
+        PreparedStatement statement = cm.prepareStatement(ADD);
+        statement.setInt(1, num);
+        statement.setString(2, name);
+        statement.executeUpdate();
+    }
+
+    // Take doses inside the caller's transaction if there are enough; call taken() once it has committed
+    public boolean take(ConnectionManager cm, String name, int num) throws SQLException {
+        PreparedStatement statement = cm.prepareStatement(TAKE);
+        statement.setInt(1, num);
+        statement.setString(2, name);
+        statement.setInt(3, num);
+        return statement.executeUpdate() == 1;
+    }
+
+    // Doses added by a committed transaction, returns the new count (-1 if the vaccine is not cached yet,
+    // the next read loads it from the table)
+    public int added(String name, int num) {
+        AtomicInteger counter = doses.get(name);
+        if (counter == null) {
+            return -1;
+        }
+        int updated = counter.addAndGet(num);
+        version.incrementAndGet();
+        return updated;
+    }
+
+    // Doses taken by a committed transaction
+    public void taken(String name, int num) {
+        added(name, -num);
+    }
+
+    // The cached counter, read from the table on a miss; null if there is no such vaccine
+    private AtomicInteger counter(String name) throws SQLException {
+        AtomicInteger counter = doses.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement(LOAD_ONE);
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                AtomicInteger loaded = new AtomicInteger(resultSet.getInt("Doses"));
+                counter = doses.putIfAbsent(name, loaded);
+                if (counter == null) {
+                    version.incrementAndGet();
+                    counter = loaded;
+                }
+                return counter;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try (ResultSet resultSet = cm.prepareStatement(LOAD).executeQuery()) {
+            while (resultSet.next()) {
+                doses.put(resultSet.getString("Name"), new AtomicInteger(resultSet.getInt("Doses")));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        version.incrementAndGet();
+    }
+}
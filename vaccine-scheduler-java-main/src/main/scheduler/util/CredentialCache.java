@@ -0,0 +1,89 @@
+package scheduler.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Short-lived cache of recently verified logins, so logging in again within CredentialCacheTtlMs doesn't run the KDF.
+// An entry holds an HMAC of the password, never the password, and only counts while the stored hash is unchanged.
+public class CredentialCache {
+
+    private static final long ttlNanos = Config.getLong("CredentialCacheTtlMs", 60_000) * 1_000_000;
+    private static final int maxSize = Config.getInt("CredentialCacheSize", 10_000);
+
+    private static final byte[] key = PasswordHasher.generateSalt();
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private CredentialCache() {
+    }
+
+    private static final class Entry {
+        private final byte[] fingerprint;
+        private final byte[] storedHash;
+        private final long expiresAt;
+
+        private Entry(byte[] fingerprint, byte[] storedHash, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.storedHash = storedHash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    // True if this password was verified against this stored hash within the TTL.
+    // realm separates the account tables, e.g. "patient" and "caregiver".
+    public static boolean isVerified(String realm, String username, String password, byte[] storedHash) {
+        if (!isEnabled()) {
+            return false;
+        }
+        String cacheKey = realm + ":" + username;
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return false;
+        }
+        if (System.nanoTime() - entry.expiresAt > 0) {
+            entries.remove(cacheKey, entry);
+            return false;
+        }
+        return MessageDigest.isEqual(entry.storedHash, storedHash)
+                && MessageDigest.isEqual(entry.fingerprint, fingerprint(username, password));
+    }
+
+    public static void remember(String realm, String username, String password, byte[] storedHash) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            long now = System.nanoTime();
+            entries.values().removeIf(e -> now - e.expiresAt > 0);
+            if (entries.size() >= maxSize) {
+                return;
+            }
+        }
+        entries.put(realm + ":" + username, new Entry(fingerprint(username, password), storedHash.clone(),
+                System.nanoTime() + ttlNanos));
+    }
+
+    private static byte[] fingerprint(String username, String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+}
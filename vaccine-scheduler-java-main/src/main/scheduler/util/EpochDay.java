@@ -0,0 +1,102 @@
+package scheduler.util;
+
+import java.time.LocalDate;
+
+// Dates as an int: days since 1970-01-01, the same number as LocalDate.toEpochDay().
+// parse reads yyyy-[m]m-[d]d straight from the characters of a command line, without making a
+// String or a Date, and rejects dates that don't exist (2025-02-30) instead of rolling them over.
+public final class EpochDay {
+
+    private EpochDay() {
+    }
+
+    public static int parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    // The date in text[start, end)
+    public static int parse(CharSequence text, int start, int end) {
+        int i = start;
+        int year = 0;
+        for (int digits = 0; digits < 4; digits++, i++) {
+            year = year * 10 + digit(text, i, end);
+        }
+        i = dash(text, i, end);
+        int month = digit(text, i++, end);
+        if (i < end && text.charAt(i) != '-') {
+            month = month * 10 + digit(text, i++, end);
+        }
+        i = dash(text, i, end);
+        int day = digit(text, i++, end);
+        if (i < end) {
+            day = day * 10 + digit(text, i++, end);
+        }
+        if (i != end) {
+            throw invalid(text, start, end);
+        }
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            throw invalid(text, start, end);
+        }
+        return of(year, month, day);
+    }
+
+    // Days from the civil date, proleptic Gregorian like LocalDate
+    public static int of(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    public static int of(LocalDate date) {
+        return Math.toIntExact(date.toEpochDay());
+    }
+
+    public static LocalDate toLocalDate(int day) {
+        return LocalDate.ofEpochDay(day);
+    }
+
+    // yyyy-mm-dd
+    public static String toString(int day) {
+        return LocalDate.ofEpochDay(day).toString();
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static int digit(CharSequence text, int i, int end) {
+        if (i >= end) {
+            throw new IllegalArgumentException("Invalid date");
+        }
+        char c = text.charAt(i);
+        if (c < '0' || c > '9') {
+            throw new IllegalArgumentException("Invalid date");
+        }
+        return c - '0';
+    }
+
+    private static int dash(CharSequence text, int i, int end) {
+        if (i >= end || text.charAt(i) != '-') {
+            throw new IllegalArgumentException("Invalid date");
+        }
+        return i + 1;
+    }
+
+    private static IllegalArgumentException invalid(CharSequence text, int start, int end) {
+        return new IllegalArgumentException("Invalid date " + text.subSequence(start, end));
+    }
+}
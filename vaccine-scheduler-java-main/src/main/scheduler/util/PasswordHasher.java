@@ -0,0 +1,172 @@
+package scheduler.util;
+
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Password hashing with configurable PBKDF2 parameters, stored next to each hash (the Kdf column)
+public class PasswordHasher {
+
+    public static final int SALT_LENGTH = 16;
+
+    // What the original Util.generateHash used; rows without a Kdf value were hashed with it
+    public static final Params LEGACY = new Params("PBKDF2WithHmacSHA1", 10, 16);
+
+    private static final Params CURRENT = new Params(
+            Config.getString("KdfAlgorithm", "PBKDF2WithHmacSHA256"),
+            Config.getInt("KdfIterations", 210_000),
+            Config.getInt("KdfKeyLength", 256));
+
+    private static final Histogram kdfTime = Metrics.KDF_SECONDS.get();
+
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<Map<String, SecretKeyFactory>> factories = ThreadLocal.withInitial(HashMap::new);
+
+    private PasswordHasher() {
+    }
+
+    // Hash parameters, stored as "<algorithm>:<iterations>:<key length in bits>"
+    public static final class Params {
+        private final String algorithm;
+        private final int iterations;
+        private final int keyLength;
+
+        public Params(String algorithm, int iterations, int keyLength) {
+            if (iterations < 1 || keyLength < 1) {
+                throw new IllegalArgumentException("Iterations and key length must be positive");
+            }
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+            this.keyLength = keyLength;
+        }
+
+        // null means the row predates the Kdf column
+        public static Params decode(String encoded) {
+            if (encoded == null) {
+                return LEGACY;
+            }
+            String[] parts = encoded.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Bad hash parameters: " + encoded);
+            }
+            return new Params(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        public String encode() {
+            return algorithm + ":" + iterations + ":" + keyLength;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Params)) {
+                return false;
+            }
+            Params other = (Params) o;
+            return iterations == other.iterations && keyLength == other.keyLength
+                    && algorithm.equals(other.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(algorithm, iterations, keyLength);
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+
+    // The parameters new hashes are made with
+    public static Params current() {
+        return CURRENT;
+    }
+
+    public static boolean needsRehash(Params params) {
+        return !CURRENT.equals(params);
+    }
+
+    public static byte[] generateSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.get().nextBytes(salt);
+        return salt;
+    }
+
+    public static byte[] hash(String password, byte[] salt, Params params) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, params.iterations, params.keyLength);
+        try {
+            SecretKeyFactory factory = factories.get().get(params.algorithm);
+            if (factory == null) {
+                factory = SecretKeyFactory.getInstance(params.algorithm);
+                factories.get().put(params.algorithm, factory);
+            }
+            long start = System.nanoTime();
+            byte[] hash = factory.generateSecret(spec).getEncoded();
+            kdfTime.recordSince(start);
+            return hash;
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Constant-time check of a password against a stored hash.
+    // Stored hashes may come back zero-padded (BINARY columns), so both sides are trimmed.
+    public static boolean verify(String password, byte[] salt, byte[] storedHash, Params params) {
+        byte[] calculated = Util.trim(hash(password, salt, params));
+        return MessageDigest.isEqual(Util.trim(storedHash), calculated);
+    }
+
+    // Prints the iteration count that makes one hash take about the target time on this machine:
+    //   java scheduler.util.PasswordHasher [target ms] [algorithm] [key length]
+    public static void main(String[] args) {
+        long targetMillis = args.length > 0 ? Long.parseLong(args[0]) : 100;
+        String algorithm = args.length > 1 ? args[1] : CURRENT.algorithm;
+        int keyLength = args.length > 2 ? Integer.parseInt(args[2]) : CURRENT.keyLength;
+        byte[] salt = generateSalt();
+
+        // Warm up, then time a fixed number of iterations and scale
+        Params probe = new Params(algorithm, 10_000, keyLength);
+        for (int i = 0; i < 20; i++) {
+            hash("warm-up password", salt, probe);
+        }
+        int rounds = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            hash("calibration password", salt, probe);
+        }
+        double nanosPerIteration = (System.nanoTime() - start) / (double) rounds / probe.iterations;
+        int iterations = (int) Math.max(1, targetMillis * 1_000_000 / nanosPerIteration);
+
+        System.out.println(algorithm + ", " + keyLength + "-bit key: "
+                + String.format("%.1f", nanosPerIteration) + " ns per iteration");
+        System.out.println("KdfIterations=" + iterations + " for about " + targetMillis + " ms per hash");
+        System.out.println("Current setting " + CURRENT + " takes about "
+                + String.format("%.1f", nanosPerIteration * CURRENT.iterations / 1_000_000) + " ms");
+    }
+}
@@ -0,0 +1,87 @@
+package scheduler.util;
+
+import java.time.DayOfWeek;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+
+// Which days of a date range a recurring availability covers: daily (the default), weekdays, weekends,
+// a day list such as MON,WED,FRI, a Monday-first mask such as 1111100, or every:N from the range start.
+public class Recurrence {
+
+    private final EnumSet<DayOfWeek> days;
+    private final int every;
+
+    private Recurrence(EnumSet<DayOfWeek> days, int every) {
+        this.days = days;
+        this.every = every;
+    }
+
+    // Throws IllegalArgumentException for a rule it doesn't understand
+    public static Recurrence parse(String rule) {
+        if (rule == null || rule.equalsIgnoreCase("daily")) {
+            return new Recurrence(EnumSet.allOf(DayOfWeek.class), 1);
+        }
+        String normalized = rule.trim().toUpperCase(Locale.ROOT);
+        if (normalized.equals("WEEKDAYS")) {
+            return new Recurrence(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY), 1);
+        }
+        if (normalized.equals("WEEKENDS")) {
+            return new Recurrence(EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY), 1);
+        }
+        if (normalized.startsWith("EVERY:")) {
+            int every = Integer.parseInt(normalized.substring("EVERY:".length()));
+            if (every < 1) {
+                throw new IllegalArgumentException("Interval must be positive: " + rule);
+            }
+            return new Recurrence(EnumSet.allOf(DayOfWeek.class), every);
+        }
+        EnumSet<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        if (normalized.matches("[01]{7}")) {
+            for (int i = 0; i < 7; i++) {
+                if (normalized.charAt(i) == '1') {
+                    days.add(DayOfWeek.of(i + 1));
+                }
+            }
+        } else {
+            for (String name : normalized.split(",")) {
+                days.add(dayOfWeek(name.trim()));
+            }
+        }
+        if (days.isEmpty()) {
+            throw new IllegalArgumentException("No days in rule: " + rule);
+        }
+        return new Recurrence(days, 1);
+    }
+
+    private static DayOfWeek dayOfWeek(String name) {
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (day.name().equals(name) || day.name().substring(0, 3).equals(name)) {
+                return day;
+            }
+        }
+        throw new IllegalArgumentException("Unknown day: " + name);
+    }
+
+    // start and day are epoch days, see EpochDay
+    public boolean matches(int start, int day) {
+        return days.contains(dayOfWeek(day)) && (day - start) % every == 0;
+    }
+
+    // 1970-01-01, epoch day 0, was a Thursday
+    static DayOfWeek dayOfWeek(int day) {
+        return DayOfWeek.of(Math.floorMod(day + 3, 7) + 1);
+    }
+
+    // The matching epoch days in [start, end], in order
+    public int[] expand(int start, int end) {
+        int[] matching = new int[Math.max(0, end - start + 1)];
+        int count = 0;
+        for (int day = start; day <= end; day++) {
+            if (matches(start, day)) {
+                matching[count++] = day;
+            }
+        }
+        return Arrays.copyOf(matching, count);
+    }
+}
@@ -0,0 +1,119 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+// Splits a command line into tokens separated by spaces or tabs, keeping only their bounds; numbers
+// and dates are parsed straight from the line.
+public final class Tokenizer {
+
+    private CharSequence line = "";
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int count = 0;
+
+    public Tokenizer reset(CharSequence line) {
+        this.line = line;
+        count = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            while (i < length && isSpace(line.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return this;
+            }
+            int start = i;
+            while (i < length && !isSpace(line.charAt(i))) {
+                i++;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = i;
+            count++;
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public CharSequence line() {
+        return line;
+    }
+
+    public int length(int i) {
+        return ends[check(i)] - starts[i];
+    }
+
+    public char charAt(int i, int offset) {
+        return line.charAt(starts[check(i)] + offset);
+    }
+
+    public boolean is(int i, String text) {
+        return regionMatches(i, 0, text, text.length()) && length(i) == text.length();
+    }
+
+    public boolean startsWith(int i, String prefix) {
+        return regionMatches(i, 0, prefix, prefix.length());
+    }
+
+    private boolean regionMatches(int i, int offset, String text, int length) {
+        int start = starts[check(i)] + offset;
+        if (ends[i] - start < length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (line.charAt(start + k) != text.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The same value String.hashCode() gives for the token, to look it up without making it a String
+    public int hash(int i) {
+        int h = 0;
+        for (int k = starts[check(i)]; k < ends[i]; k++) {
+            h = 31 * h + line.charAt(k);
+        }
+        return h;
+    }
+
+    public String string(int i) {
+        return line.subSequence(starts[check(i)], ends[i]).toString();
+    }
+
+    // The token from offset on, e.g. the value of "from=2030-01-01"
+    public String string(int i, int offset) {
+        return line.subSequence(starts[check(i)] + offset, ends[i]).toString();
+    }
+
+    // Throws NumberFormatException
+    public int parseInt(int i) {
+        return Integer.parseInt(line, starts[check(i)], ends[i], 10);
+    }
+
+    // Throws IllegalArgumentException
+    public int epochDay(int i) {
+        return EpochDay.parse(line, starts[check(i)], ends[i]);
+    }
+
+    public int epochDay(int i, int offset) {
+        return EpochDay.parse(line, starts[check(i)] + offset, ends[i]);
+    }
+
+    private int check(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("No token " + i + " of " + count);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,78 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+
+    private File dbFile;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dbFile = File.createTempFile("pool-test", ".db");
+        pool = open(100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+        dbFile.delete();
+    }
+
+    // A pool of at most one connection
+    private ConnectionPool open(long maxWaitMillis) {
+        return new ConnectionPool(new SqliteStorage(dbFile.getAbsolutePath()), false, 0, 1, 0, maxWaitMillis, 16);
+    }
+
+    @Test
+    void borrowTimesOutWhenExhausted() throws SQLException {
+        PooledConnection held = pool.borrow();
+        SQLException e = assertThrows(SQLException.class, pool::borrow);
+        assertTrue(e.getMessage().contains("exhausted"), e.getMessage());
+        assertEquals(1, pool.getExhaustedCount());
+        assertEquals(1, pool.getTimeoutCount());
+        assertEquals(1, pool.getOpenCount());
+
+        // The connection is still good once it comes back
+        pool.release(held);
+        PooledConnection again = pool.borrow();
+        assertNotNull(again);
+        assertEquals(1, pool.getCreatedCount());
+        pool.release(again);
+    }
+
+    @Test
+    void waiterGetsReleasedConnection() throws Exception {
+        pool.close();
+        pool = open(5000);
+        PooledConnection held = pool.borrow();
+        CompletableFuture<PooledConnection> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (pool.getExhaustedCount() == 0) {
+            Thread.sleep(1);
+        }
+        pool.release(held);
+        PooledConnection got = waiter.get(5, TimeUnit.SECONDS);
+        assertNotNull(got);
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(0, pool.getTimeoutCount());
+        pool.release(got);
+    }
+}
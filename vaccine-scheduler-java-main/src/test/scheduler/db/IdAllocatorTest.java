@@ -0,0 +1,68 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdAllocatorTest {
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        TestDatabase.get();
+    }
+
+    @Test
+    void refillsFromTheSequence() throws SQLException {
+        IdAllocator ids = new IdAllocator("refill_test", "SELECT 10", 3);
+        assertEquals(10, ids.next());
+        assertEquals(11, ids.next());
+        assertEquals(12, ids.next());
+        assertEquals(13, storedNext("refill_test"));
+        // The block is used up, the next call reserves another one
+        assertEquals(13, ids.next());
+        assertEquals(16, storedNext("refill_test"));
+    }
+
+    @Test
+    void allocatorsSharingASequenceNeverOverlap() throws SQLException {
+        // Two allocators on one sequence stand in for two processes on one database
+        IdAllocator first = new IdAllocator("shared_test", "SELECT 1", 4);
+        IdAllocator second = new IdAllocator("shared_test", "SELECT 1", 4);
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(seen.add(first.next()));
+            assertTrue(seen.add(second.next()));
+        }
+    }
+
+    @Test
+    void givenBackIdIsReused() throws SQLException {
+        IdAllocator ids = new IdAllocator("give_back_test", "SELECT 1", 8);
+        int unused = ids.next();
+        ids.giveBack(unused);
+        assertEquals(unused, ids.next());
+        assertEquals(unused + 1, ids.next());
+    }
+
+    private static int storedNext(String name) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement read = cm.prepareStatement("SELECT Next_value FROM Sequences WHERE Name = ?");
+            read.setString(1, name);
+            try (ResultSet resultSet = read.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class QueryPlanCheckTest {
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        TestDatabase.get();
+    }
+
+    @TestFactory
+    Stream<DynamicTest> hotQueriesUseTheirIndexes() {
+        return QueryPlanCheck.hotQueries().entrySet().stream().map(query -> DynamicTest.dynamicTest(query.getKey(),
+                () -> {
+                    List<String> plan = QueryPlanCheck.explain(query.getValue().sql);
+                    for (String step : plan) {
+                        assertFalse(QueryPlanCheck.isFullScan(step), step);
+                    }
+                    assertEquals(List.of(), QueryPlanCheck.missingIndexes(query.getValue(), plan), plan.toString());
+                }));
+    }
+}
@@ -0,0 +1,140 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs the SQLite migrations on a database file of its own, without the pool
+class SqliteMigrationTest {
+
+    private File dbFile;
+    private Connection con;
+    private String[][] migrations;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dbFile = File.createTempFile("migration-test", ".db");
+        migrations = new SqliteStorage(dbFile.getAbsolutePath()).migrations();
+        con = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        try (Statement statement = con.createStatement()) {
+            for (String ddl : TestDatabase.readSchema().split(";")) {
+                if (!ddl.trim().isEmpty()) {
+                    statement.executeUpdate(ddl);
+                }
+            }
+            statement.executeUpdate("INSERT INTO Caregivers (Username) VALUES ('c1')");
+            statement.executeUpdate("INSERT INTO Patients (Username) VALUES ('p1')");
+            statement.executeUpdate("INSERT INTO Vaccines VALUES ('v1', 5)");
+        }
+        migrateTo(3);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        con.close();
+        dbFile.delete();
+    }
+
+    @Test
+    void migration4ConvertsDatesToEpochDays() throws SQLException {
+        // Written by the old code through the driver, from both ends of the UTC offsets it supports
+        insertAvailability("Pacific/Tongatapu", "2026-03-01");
+        insertAvailability("Pacific/Honolulu", "2026-03-02");
+        insertReservation("Pacific/Tongatapu", "2026-03-01", 7);
+        insertReservation("Pacific/Honolulu", "1969-12-31", 8);
+        // Written as text by another tool
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate("INSERT INTO Availabilities VALUES ('2026-03-03', 'c1')");
+        }
+
+        migrateTo(4);
+
+        assertEquals(List.of(day("2026-03-01"), day("2026-03-02"), day("2026-03-03")),
+                ints("SELECT Day FROM Availabilities ORDER BY Day"));
+        assertEquals(List.of(day("2026-03-01"), day("1969-12-31")),
+                ints("SELECT Day FROM Reservations ORDER BY appointment_id"));
+        assertEquals(List.of(7, 8), ints("SELECT rowid FROM Reservations ORDER BY rowid"));
+        assertEquals(List.of(0), ints("SELECT COUNT(*) FROM Availabilities WHERE typeof(Day) <> 'integer'"));
+        for (String index : new String[]{"Reservations_patient", "Reservations_caregiver", "Reservations_caregiver_day"}) {
+            assertTrue(ints("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = '" + index + "'")
+                    .equals(List.of(1)), index);
+        }
+    }
+
+    private void migrateTo(int version) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            int current;
+            try (ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+                current = resultSet.getInt(1);
+            }
+            for (int v = current; v < version; v++) {
+                for (String sql : migrations[v]) {
+                    statement.executeUpdate(sql);
+                }
+            }
+            statement.executeUpdate("PRAGMA user_version = " + version);
+        }
+    }
+
+    private void insertAvailability(String zone, String date) throws SQLException {
+        inZone(zone, () -> {
+            PreparedStatement statement = con.prepareStatement("INSERT INTO Availabilities VALUES (?, 'c1')");
+            statement.setDate(1, Date.valueOf(date));
+            statement.executeUpdate();
+        });
+    }
+
+    private void insertReservation(String zone, String date, int id) throws SQLException {
+        inZone(zone, () -> {
+            PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Reservations VALUES (?, 'c1', 'p1', 'v1', ?)");
+            statement.setDate(1, Date.valueOf(date));
+            statement.setInt(2, id);
+            statement.executeUpdate();
+        });
+    }
+
+    private interface Write {
+        void run() throws SQLException;
+    }
+
+    private static void inZone(String zone, Write write) throws SQLException {
+        TimeZone saved = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        try {
+            write.run();
+        } finally {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    private static int day(String date) {
+        return (int) LocalDate.parse(date).toEpochDay();
+    }
+
+    private List<Integer> ints(String sql) throws SQLException {
+        List<Integer> values = new ArrayList<>();
+        try (Statement statement = con.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+            while (resultSet.next()) {
+                values.add(resultSet.getInt(1));
+            }
+        }
+        return values;
+    }
+}
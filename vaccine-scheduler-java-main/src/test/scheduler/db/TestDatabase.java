@@ -0,0 +1,68 @@
+package scheduler.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// A temporary database with the base schema and every migration, shared by every test in the JVM:
+// the pool reads DBPath once, so it is set before anything touches ConnectionManager. Tests keep
+// to their own names so they don't see each other's rows.
+public final class TestDatabase {
+
+    private static Path path = null;
+
+    private TestDatabase() {
+    }
+
+    public static synchronized Path get() throws SQLException {
+        if (path == null) {
+            try {
+                path = Files.createTempFile("scheduler-test", ".db");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            path.toFile().deleteOnExit();
+            System.setProperty("DBPath", path.toString());
+            createSchema();
+            SchemaMigrator.migrate();
+        }
+        return path;
+    }
+
+    private static void createSchema() throws SQLException {
+        String sql = readSchema();
+        ConnectionManager.inTransaction(cm -> {
+            try (Statement statement = cm.createConnection().createStatement()) {
+                for (String ddl : sql.split(";")) {
+                    if (!ddl.trim().isEmpty()) {
+                        statement.executeUpdate(ddl);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    // create.sql without its comments
+    static String readSchema() {
+        StringBuilder sql = new StringBuilder();
+        try (InputStream in = TestDatabase.class.getResourceAsStream("/resources/sqlite/create.sql");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf("--");
+                sql.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sql.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteQueueTest {
+
+    private static final String INSERT = "INSERT INTO WriteQueue_test VALUES (?)";
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        TestDatabase.get();
+        ConnectionManager.inTransaction(cm -> cm.prepareStatement(
+                "CREATE TABLE IF NOT EXISTS WriteQueue_test (Name varchar(255), PRIMARY KEY (Name))").executeUpdate());
+    }
+
+    @Test
+    void failedTransactionRollsBackOnlyItsOwnSavepoint() throws Exception {
+        // Hold the writer so the next two transactions are queued and committed as one group
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> blocker = CompletableFuture.supplyAsync(() -> write(cm -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            return null;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Object> failing = CompletableFuture.supplyAsync(() -> write(cm -> {
+            insert(cm, "group_failing");
+            throw new IllegalStateException("rolled back");
+        }));
+        CompletableFuture<Object> succeeding = CompletableFuture.supplyAsync(() -> write(cm -> {
+            insert(cm, "group_succeeding");
+            return null;
+        }));
+        // Time for both to reach the queue; if they don't, they commit on their own and the checks still hold
+        Thread.sleep(200);
+        release.countDown();
+
+        blocker.get(5, TimeUnit.SECONDS);
+        succeeding.get(5, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failing.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertTrue(exists("group_succeeding"));
+        assertFalse(exists("group_failing"));
+    }
+
+    @Test
+    void nestedTransactionRollsBackToItsSavepoint() throws SQLException {
+        int inserted = ConnectionManager.inTransaction(cm -> {
+            insert(cm, "nested_outer");
+            assertThrows(IllegalStateException.class, () -> ConnectionManager.inTransaction(inner -> {
+                insert(inner, "nested_inner");
+                throw new IllegalStateException("rolled back");
+            }));
+            return 1;
+        });
+        assertEquals(1, inserted);
+        assertTrue(exists("nested_outer"));
+        assertFalse(exists("nested_inner"));
+    }
+
+    private static Object write(ConnectionManager.Transaction<Object> work) {
+        try {
+            return ConnectionManager.inTransaction(work);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void insert(ConnectionManager cm, String name) throws SQLException {
+        PreparedStatement statement = cm.prepareStatement(INSERT);
+        statement.setString(1, name);
+        statement.executeUpdate();
+    }
+
+    private static boolean exists(String name) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement("SELECT 1 FROM WriteQueue_test WHERE Name = ?");
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package scheduler.model;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import scheduler.db.ConnectionManager;
+import scheduler.db.TestDatabase;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VaccineInventoryTest {
+
+    private static VaccineInventory inventory;
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        TestDatabase.get();
+        inventory = VaccineInventory.get();
+    }
+
+    @Test
+    void changesReachTheTable() throws SQLException {
+        assertEquals(5, inventory.add("inventory_add", 5));
+        assertTrue(inventory.take("inventory_add", 2));
+        assertFalse(inventory.take("inventory_add", 4));
+        assertEquals(3, inventory.getDoses("inventory_add"));
+        assertEquals(3, storedDoses("inventory_add"));
+        assertEquals(3, inventory.snapshot().get("inventory_add"));
+    }
+
+    @Test
+    void rolledBackTakeChangesNothing() throws SQLException {
+        inventory.add("inventory_rollback", 1);
+        assertThrows(IllegalStateException.class, () -> ConnectionManager.inTransaction(cm -> {
+            assertTrue(inventory.take(cm, "inventory_rollback", 1));
+            throw new IllegalStateException("booking failed after the dose was taken");
+        }));
+        assertEquals(1, storedDoses("inventory_rollback"));
+        assertEquals(1, inventory.getDoses("inventory_rollback"));
+    }
+
+    @Test
+    void unknownVaccineIsReadThrough() throws SQLException {
+        assertEquals(-1, inventory.getDoses("inventory_missing"));
+        // Written behind the inventory's back, as another process would
+        ConnectionManager.inTransaction(cm -> {
+            cm.prepareStatement("INSERT INTO Vaccines VALUES ('inventory_missing', 7)").executeUpdate();
+            return null;
+        });
+        assertEquals(7, inventory.getDoses("inventory_missing"));
+    }
+
+    private static int storedDoses(String name) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            PreparedStatement statement = cm.prepareStatement("SELECT Doses FROM Vaccines WHERE Name = ?");
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}